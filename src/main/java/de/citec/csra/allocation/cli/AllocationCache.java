@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.EventId;
+import rsb.ParticipantId;
+import rsb.RSBException;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+
+/**
+ * Keeps track of all live allocations at the allocation scope. The cache can
+ * seed local resource monitors and, if serving is enabled, answer snapshot
+ * queries of other participants in place of the scheduler. To avoid duplicate
+ * answers, a query is only answered if the scheduler did not complete its
+ * answer within a short delay, and the answer is marked as cached. Only
+ * updates of the scheduler are cached, i.e. neither requests and other updates
+ * of clients nor answers of other caches.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class AllocationCache extends AbstractEventHandler implements Executable {
+
+	private final static Logger LOG = Logger.getLogger(AllocationCache.class.getName());
+	public final static long DELAY = 100;
+	private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "allocation-cache");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static AllocationCache active;
+
+	private final Map<String, ResourceAllocation> live = new ConcurrentHashMap<>();
+	private final Set<EventId> pending = ConcurrentHashMap.newKeySet();
+	private final Set<ParticipantId> clients = ConcurrentHashMap.newKeySet();
+	private final boolean serving;
+	private final long delay;
+
+	public AllocationCache() {
+		this(false);
+	}
+
+	public AllocationCache(boolean serving) {
+		this(serving, DELAY);
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param serving whether to answer snapshot queries
+	 * @param delay the time in ms to wait for an answer of the scheduler
+	 * before answering a snapshot query
+	 */
+	public AllocationCache(boolean serving, long delay) {
+		this.serving = serving;
+		this.delay = delay;
+	}
+
+	/**
+	 * Returns the cache that is currently active in this process.
+	 *
+	 * @return the active cache or null
+	 */
+	public static synchronized AllocationCache getActive() {
+		return active;
+	}
+
+	@Override
+	public void startup() throws RSBException {
+		try {
+			RemoteAllocationService.getInstance().addHandler(this, true);
+		} catch (InterruptedException ex) {
+			LOG.log(Level.SEVERE, "Interrupted during handler addition, shutting down", ex);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		synchronized (AllocationCache.class) {
+			active = this;
+		}
+	}
+
+	@Override
+	public void shutdown() throws RSBException {
+		synchronized (AllocationCache.class) {
+			if (active == this) {
+				active = null;
+			}
+		}
+		try {
+			RemoteAllocationService.getInstance().removeHandler(this, true);
+		} catch (InterruptedException ex) {
+			LOG.log(Level.SEVERE, "Interrupted during handler removal, ignoring.", ex);
+			Thread.currentThread().interrupt();
+		}
+		this.pending.clear();
+		this.clients.clear();
+		this.live.clear();
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		if (RemoteAllocationService.isSnapshotEnd(event)) {
+			if (!RemoteAllocationService.isCachedReply(event)) {
+				this.pending.removeAll(event.getCauses());
+			}
+		} else if (event.getData() instanceof ResourceAllocation) {
+			if (!RemoteAllocationService.isCachedReply(event) && isServerUpdate(event)) {
+				update((ResourceAllocation) event.getData());
+			}
+		} else if (this.serving && RemoteAllocationService.isSnapshotQuery(event)) {
+			this.pending.add(event.getId());
+			TIMER.schedule(() -> answer(event), this.delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void answer(Event query) {
+		if (!this.pending.remove(query.getId())) {
+			LOG.log(Level.FINE, "snapshot query answered by scheduler, skipping");
+			return;
+		}
+		List<ResourceAllocation> snapshot = getSnapshot(RemoteAllocationService.getSnapshotResources(query));
+		LOG.log(Level.FINE, "answering snapshot query with {0} allocations", snapshot.size());
+		try {
+			RemoteAllocationService.getInstance().replySnapshot(query, snapshot, true);
+		} catch (RSBException ex) {
+			LOG.log(Level.WARNING, "Could not answer snapshot query", ex);
+		}
+	}
+
+	/**
+	 * Checks whether an allocation event was sent by the scheduler. Clients
+	 * are recognized by their requests, the scheduler never publishes
+	 * allocations in state REQUESTED.
+	 *
+	 * @param event the allocation event
+	 * @return true if the event is not known to be sent by a client
+	 */
+	private boolean isServerUpdate(Event event) {
+		ParticipantId origin = event.getId().getParticipantId();
+		switch (((ResourceAllocation) event.getData()).getState()) {
+			case REQUESTED:
+				this.clients.add(origin);
+				return false;
+			default:
+				return !this.clients.contains(origin);
+		}
+	}
+
+	private void update(ResourceAllocation allocation) {
+		switch (allocation.getState()) {
+			case REQUESTED:
+			case SCHEDULED:
+			case ALLOCATED:
+				this.live.put(allocation.getId(), allocation);
+				break;
+			case REJECTED:
+			case CANCELLED:
+			case ABORTED:
+			case RELEASED:
+			default:
+				this.live.remove(allocation.getId());
+				break;
+		}
+	}
+
+	public List<ResourceAllocation> getSnapshot(String... resources) {
+		return getSnapshot(Arrays.asList(resources));
+	}
+
+	public List<ResourceAllocation> getSnapshot(Collection<String> resources) {
+		Set<String> wanted = new HashSet<>(resources);
+		List<ResourceAllocation> snapshot = new ArrayList<>();
+		for (ResourceAllocation allocation : this.live.values()) {
+			for (String resource : allocation.getResourceIdsList()) {
+				if (wanted.contains(resource)) {
+					snapshot.add(allocation);
+					break;
+				}
+			}
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.Event;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+
+/**
+ * Encodes outgoing and decodes incoming allocation events. Every event carries
+ * a version in its meta data. With delta encoding enabled, subsequent events of
+ * an allocation omit the description and the resource ids as long as these did
+ * not change. Receivers rebuild the full record from the last full record they
+ * have seen for the allocation id. As receivers may join late or evict
+ * records, an allocation is sent in full again at least every
+ * {@link #REFRESH} ms, when it ends, in snapshot replies and after a snapshot
+ * query for one of its resources.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+class AllocationCodec {
+
+	private final static Logger LOG = Logger.getLogger(AllocationCodec.class.getName());
+	final static String ENCODING = "encoding";
+	final static String DELTA = "delta";
+	final static String VERSION = "version";
+	private final static int CACHE_SIZE = 4096;
+	final static long REFRESH = 5000;
+
+	private final boolean delta;
+	private final long refresh;
+	private final AtomicLong version = new AtomicLong();
+	private final AtomicLong undecodable = new AtomicLong();
+	private final Map<String, Sent> sent = new LinkedHashMap<String, Sent>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Sent> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	private final Map<String, ResourceAllocation> received = new LinkedHashMap<String, ResourceAllocation>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ResourceAllocation> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private static class Sent {
+
+		private final ResourceAllocation allocation;
+		private final long time;
+
+		private Sent(ResourceAllocation allocation, long time) {
+			this.allocation = allocation;
+			this.time = time;
+		}
+	}
+
+	AllocationCodec(boolean delta) {
+		this(delta, REFRESH);
+	}
+
+	AllocationCodec(boolean delta, long refresh) {
+		this.delta = delta;
+		this.refresh = refresh;
+	}
+
+	/**
+	 * Assigns the next version to an outgoing event and encodes it. The caller
+	 * has to publish events in the order they were encoded.
+	 *
+	 * @param event the event to encode
+	 * @param full whether to send the full record in any case
+	 */
+	void encode(Event event, boolean full) {
+		ResourceAllocation allocation = (ResourceAllocation) event.getData();
+		event.getMetaData().setUserInfo(VERSION, String.valueOf(this.version.incrementAndGet()));
+		if (!this.delta) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this.sent) {
+			Sent previous = this.sent.get(allocation.getId());
+			if (!full
+					&& isAlive(allocation)
+					&& previous != null
+					&& now - previous.time < this.refresh
+					&& previous.allocation.getDescription().equals(allocation.getDescription())
+					&& previous.allocation.getResourceIdsList().equals(allocation.getResourceIdsList())) {
+				event.setData(ResourceAllocation.newBuilder(allocation).clearDescription().clearResourceIds().build());
+				event.getMetaData().setUserInfo(ENCODING, DELTA);
+				return;
+			}
+			if (isAlive(allocation)) {
+				this.sent.put(allocation.getId(), new Sent(allocation, now));
+			} else {
+				this.sent.remove(allocation.getId());
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that the next event of every allocation involving one of the
+	 * given resources is sent in full, e.g. because a receiver asked for it.
+	 *
+	 * @param resources the resources
+	 */
+	void refresh(Collection<String> resources) {
+		synchronized (this.sent) {
+			Iterator<Sent> it = this.sent.values().iterator();
+			while (it.hasNext()) {
+				for (String resource : it.next().allocation.getResourceIdsList()) {
+					if (resources.contains(resource)) {
+						it.remove();
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isAlive(ResourceAllocation allocation) {
+		switch (allocation.getState()) {
+			case REJECTED:
+			case CANCELLED:
+			case ABORTED:
+			case RELEASED:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	boolean decode(Event event) {
+		if (!(event.getData() instanceof ResourceAllocation)) {
+			return true;
+		}
+		ResourceAllocation allocation = (ResourceAllocation) event.getData();
+		synchronized (this.received) {
+			if (isDelta(event)) {
+				ResourceAllocation full = this.received.get(allocation.getId());
+				if (full == null) {
+					LOG.log(Level.FINE, "Dropping delta update of unknown allocation ''{0}'' ({1} in total)",
+							new Object[]{allocation.getId(), this.undecodable.incrementAndGet()});
+					return false;
+				}
+				allocation = ResourceAllocation.newBuilder(allocation)
+						.setDescription(full.getDescription())
+						.addAllResourceIds(full.getResourceIdsList())
+						.build();
+				event.setData(allocation);
+			}
+			this.received.put(allocation.getId(), allocation);
+		}
+		return true;
+	}
+
+	private static boolean isDelta(Event event) {
+		return event.getMetaData().hasUserInfo(ENCODING)
+				&& DELTA.equals(event.getMetaData().getUserInfo(ENCODING))
+				&& ((ResourceAllocation) event.getData()).getResourceIdsCount() == 0;
+	}
+
+	long getUndecodableCount() {
+		return this.undecodable.get();
+	}
+}
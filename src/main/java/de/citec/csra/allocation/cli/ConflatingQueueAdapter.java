@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+
+/**
+ * Bounded ring buffer for incoming allocation events. As long as the consumer
+ * keeps up, events are delivered in order of arrival. Once the buffer is full,
+ * only the newest event per allocation id is retained and, if that does not
+ * free any space, the oldest event is dropped and counted as overflow.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ConflatingQueueAdapter extends AbstractEventHandler {
+
+	private final static Logger LOG = Logger.getLogger(ConflatingQueueAdapter.class.getName());
+	public final static int CAPACITY = 256;
+
+	private final Event[] ring;
+	private final Predicate<ResourceAllocation> filter;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private int head;
+	private int count;
+	private long conflated;
+	private long overflows;
+
+	public ConflatingQueueAdapter() {
+		this(CAPACITY, (a) -> true);
+	}
+
+	public ConflatingQueueAdapter(Predicate<ResourceAllocation> filter) {
+		this(CAPACITY, filter);
+	}
+
+	public ConflatingQueueAdapter(int capacity, Predicate<ResourceAllocation> filter) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive.");
+		}
+		this.ring = new Event[capacity];
+		this.filter = filter;
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		if (!(event.getData() instanceof ResourceAllocation)
+				|| !this.filter.test((ResourceAllocation) event.getData())) {
+			return;
+		}
+		this.lock.lock();
+		try {
+			if (this.count == this.ring.length) {
+				conflate();
+			}
+			if (this.count == this.ring.length) {
+				this.ring[this.head] = null;
+				this.head = (this.head + 1) % this.ring.length;
+				this.count--;
+				this.overflows++;
+				LOG.log(Level.WARNING, "Ingress buffer overflow, dropped oldest allocation update ({0} in total)", this.overflows);
+			}
+			this.ring[(this.head + this.count) % this.ring.length] = event;
+			this.count++;
+			this.available.signal();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void conflate() {
+		Set<String> seen = new HashSet<>();
+		Event[] retained = new Event[this.ring.length];
+		int kept = 0;
+		for (int i = this.count - 1; i >= 0; i--) {
+			Event e = this.ring[(this.head + i) % this.ring.length];
+			if (seen.add(((ResourceAllocation) e.getData()).getId())) {
+				retained[kept++] = e;
+			}
+		}
+		this.conflated += this.count - kept;
+		for (int i = 0; i < this.ring.length; i++) {
+			this.ring[i] = i < kept ? retained[kept - 1 - i] : null;
+		}
+		this.head = 0;
+		this.count = kept;
+		LOG.log(Level.FINE, "Ingress buffer full, conflated to {0} allocation updates", kept);
+	}
+
+	public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		this.lock.lockInterruptibly();
+		try {
+			while (this.count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = this.available.awaitNanos(nanos);
+			}
+			Event e = this.ring[this.head];
+			this.ring[this.head] = null;
+			this.head = (this.head + 1) % this.ring.length;
+			this.count--;
+			return e;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public int size() {
+		this.lock.lock();
+		try {
+			return this.count;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public long getConflatedCount() {
+		this.lock.lock();
+		try {
+			return this.conflated;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public long getOverflowCount() {
+		this.lock.lock();
+		try {
+			return this.overflows;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+}
@@ -20,10 +20,14 @@ import static de.citec.csra.allocation.cli.ExecutableResource.Completion.EXPIRE;
 import de.citec.csra.rst.util.IntervalUtils;
 import java.util.Arrays;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,6 +36,7 @@ import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ABORTED;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.CANCELLED;
@@ -54,11 +59,25 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 	}
 
 	private final static Logger LOG = Logger.getLogger(ExecutableResource.class.getName());
+	private final static long SPIN = 2;
+	private final static long CONFIRMATION = 250;
+	private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "armed-confirmation");
+		t.setDaemon(true);
+		return t;
+	});
 	private final ExecutorService executor;
 	private boolean externalExecutor = true;
 	private final Completion completion;
 	private final RemoteAllocation remote;
 	private Future<T> result;
+	private final CompletableFuture<T> outcome = new CompletableFuture<>();
+	private long renewThreshold;
+	private long renewAmount;
+	private boolean armed;
+	private long confirmation = CONFIRMATION;
+	private boolean allocated;
+	private volatile boolean executing;
 
 	public ExecutableResource(ResourceAllocation allocation) {
 		this(allocation, EXPIRE);
@@ -75,6 +94,25 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 		this.executor = executor;
 	}
 
+	public ExecutableResource(RemoteAllocation remote, Completion completion) {
+		this(remote, completion, Executors.newSingleThreadExecutor());
+		this.externalExecutor = false;
+	}
+
+	/**
+	 * Executes user code for an existing allocation, e.g. a sub-allocation
+	 * obtained from a {@link ResourcePool}.
+	 *
+	 * @param remote the allocation
+	 * @param completion the completion behavior
+	 * @param executor the executor for the user code
+	 */
+	public ExecutableResource(RemoteAllocation remote, Completion completion, ExecutorService executor) {
+		this.remote = remote;
+		this.completion = completion;
+		this.executor = executor;
+	}
+
 	public ExecutableResource(String description, Policy policy, Priority priority, Initiator initiator, long delay, long duration, Completion completion, String... resources) {
 		this(description, policy, priority, initiator, delay, duration, completion, Executors.newSingleThreadExecutor(), resources);
 		this.externalExecutor = false;
@@ -96,10 +134,24 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 		this(description, policy, priority, initiator, delay, duration, EXPIRE, resources);
 	}
 
+	/**
+	 * Keeps the allocation alive while the user code is executing by extending
+	 * the slot whenever its remaining time reaches the given threshold.
+	 *
+	 * @param threshold remaining time in ms at which the slot is extended
+	 * @param amount duration in ms by which the slot is extended, or 0 to
+	 * disable renewal
+	 */
+	public void setKeepAlive(long threshold, long amount) {
+		this.renewThreshold = threshold;
+		this.renewAmount = amount;
+	}
+
 	private void terminateExecution(boolean interrupt) {
 		if (result != null && !result.isDone()) {
-			result.cancel(interrupt);
+			result.cancel(interrupt || executing);
 		}
+		outcome.completeExceptionally(new CancellationException("Execution terminated in state " + remote.getCurrentState()));
 		try {
 			remote.removeSchedulerListener(this);
 			if(!externalExecutor) {
@@ -116,7 +168,9 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 	public void startup() throws RSBException {
 		this.result = executor.submit(this);
 		this.remote.addSchedulerListener(this);
-		this.remote.schedule();
+		if (!this.remote.isScheduled()) {
+			this.remote.schedule();
+		}
 	}
 
 	@Override
@@ -138,38 +192,83 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 		}
 	}
 
+	/**
+	 * Starts execution at the begin of the slot as scheduled, without waiting
+	 * for the server to confirm the allocation. If the server does not
+	 * allocate the resources after all, the execution is interrupted.
+	 *
+	 * @param armed whether to start execution on a local timer
+	 */
+	public void setArmed(boolean armed) {
+		setArmed(armed, CONFIRMATION);
+	}
+
+	/**
+	 * Starts execution at the begin of the slot as scheduled, without waiting
+	 * for the server to confirm the allocation. If the server does not
+	 * allocate the resources within the given grace period after the start,
+	 * the execution is interrupted and the allocation cancelled.
+	 *
+	 * @param armed whether to start execution on a local timer
+	 * @param confirmation the grace period for the server confirmation in ms
+	 */
+	public void setArmed(boolean armed, long confirmation) {
+		if (confirmation < 0) {
+			throw new IllegalArgumentException("Confirmation grace period must not be negative.");
+		}
+		this.armed = armed;
+		this.confirmation = confirmation;
+	}
+
 	@Override
 	public T call() {
-		synchronized (this) {
-			try {
-				awaitStart:
-				while (!Thread.interrupted()) {
-					this.wait();
-					switch (this.remote.getCurrentState()) {
-						case REQUESTED:
-						case SCHEDULED:
-							break;
-						case ALLOCATED:
-							break awaitStart;
-						case ABORTED:
-						case CANCELLED:
-						case REJECTED:
-						case RELEASED:
-							return null;
-					}
-				}
-			} catch (InterruptedException ex) {
-				LOG.log(Level.SEVERE, "Startup interrupted in state " + this.remote.getCurrentState(), ex);
-				Thread.interrupted();
+		try {
+			if (!awaitStart()) {
 				return null;
 			}
+		} catch (ExecutionException ex) {
+			LOG.log(Level.WARNING, "Preparation failed, cancelling allocation at server", ex);
+			this.outcome.completeExceptionally(ex.getCause() != null ? ex.getCause() : ex);
+			end(false);
+			return null;
+		} catch (InterruptedException ex) {
+			LOG.log(Level.SEVERE, "Startup interrupted in state " + this.remote.getCurrentState(), ex);
+			this.outcome.completeExceptionally(ex);
+			Thread.interrupted();
+			return null;
 		}
 
 		T res = null;
 		try {
 			LOG.log(Level.FINE, "Starting user code execution for {0}ms.", this.remote.getRemainingTime());
-			res = execute();
+			long confirmBy = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.confirmation);
+			ScheduledFuture<?> check = null;
+			if (!isAllocated()) {
+				check = TIMER.schedule(this::confirm, this.confirmation, TimeUnit.MILLISECONDS);
+			}
+			LeaseRenewer.Lease lease = null;
+			if (this.renewAmount > 0) {
+				lease = this.remote.keepAlive(this.renewThreshold, this.renewAmount);
+			}
+			try {
+				res = execute();
+			} finally {
+				this.executing = false;
+				if (check != null) {
+					check.cancel(false);
+				}
+				if (lease != null) {
+					lease.cancel();
+				}
+			}
 			LOG.log(Level.FINE, "User code execution returned with ''{0}''", res);
+			if (!awaitConfirmation(confirmBy)) {
+				LOG.log(Level.WARNING, "Armed execution not confirmed by server, cancelling allocation");
+				this.outcome.completeExceptionally(new CancellationException("Allocation not confirmed in state " + this.remote.getCurrentState()));
+				end(false);
+				return null;
+			}
+			this.outcome.complete(res);
 			switch (completion) {
 				case MONITOR:
 					synchronized (this) {
@@ -181,38 +280,143 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 					}
 //					no break -> release resource after waiting
 				case EXPIRE:
-					try {
-						this.remote.release();
-					} catch (RSBException ex) {
-						LOG.log(Level.WARNING, "Could not release resources at server", ex);
-					}
+					end(true);
 					break;
 				case RETAIN:
 					break;
 			}
 		} catch (ExecutionException ex) {
 			LOG.log(Level.WARNING, "User code execution failed, aborting allocation at server", ex);
-			try {
-				this.remote.abort();
-			} catch (RSBException ex1) {
-				LOG.log(Level.WARNING, "Could not abort resource allocation at server", ex1);
-			}
+			this.outcome.completeExceptionally(ex.getCause() != null ? ex.getCause() : ex);
+			end(false);
 		} catch (InterruptedException ex) {
 			LOG.log(Level.FINER, "User code interrupted, aborting allocation at server");
-			try {
-				this.remote.abort();
-			} catch (RSBException ex1) {
-				LOG.log(Level.WARNING, "Could not abort resource allocation at server", ex1);
-			}
+			this.outcome.completeExceptionally(ex);
+			end(false);
 		}
 		return res;
 
 	}
 
+	/**
+	 * Ends the allocation at the server. Allocated resources are released or
+	 * aborted, allocations that have not been confirmed yet are cancelled.
+	 *
+	 * @param success whether the execution succeeded
+	 */
+	private void end(boolean success) {
+		try {
+			switch (this.remote.getCurrentState()) {
+				case ALLOCATED:
+					if (success) {
+						this.remote.release();
+					} else {
+						this.remote.abort();
+					}
+					break;
+				case REQUESTED:
+				case SCHEDULED:
+					this.remote.cancel();
+					break;
+				default:
+					break;
+			}
+		} catch (RSBException ex) {
+			LOG.log(Level.WARNING, "Could not end resource allocation at server", ex);
+		}
+	}
+
+	private synchronized boolean isAllocated() {
+		return this.allocated;
+	}
+
+	/**
+	 * Interrupts an armed execution whose allocation has not been confirmed
+	 * within the grace period.
+	 */
+	private void confirm() {
+		if (!isAllocated() && this.result != null) {
+			LOG.log(Level.WARNING, "Allocation not confirmed within {0}ms, interrupting armed execution", this.confirmation);
+			this.result.cancel(true);
+		}
+	}
+
+	private synchronized boolean awaitConfirmation(long confirmBy) throws InterruptedException {
+		long remaining;
+		while (!this.allocated && (remaining = confirmBy - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return this.allocated;
+	}
+
+	private boolean awaitStart() throws ExecutionException, InterruptedException {
+		boolean prepared = false;
+		while (true) {
+			State state;
+			long begin = 0;
+			synchronized (this) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				state = this.remote.getCurrentState();
+				if (state == REQUESTED || (state == SCHEDULED && prepared && !this.armed)) {
+					this.wait();
+					continue;
+				}
+				if (state == SCHEDULED && prepared) {
+					long delay = this.remote.getSlot().getBegin().getTime() - System.currentTimeMillis();
+					if (delay > SPIN) {
+						this.wait(delay - SPIN);
+						continue;
+					}
+					begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+					this.executing = true;
+				}
+				if (state == ALLOCATED && prepared) {
+					this.allocated = true;
+					this.executing = true;
+					return true;
+				}
+			}
+			switch (state) {
+				case SCHEDULED:
+				case ALLOCATED:
+					if (!prepared) {
+						LOG.log(Level.FINE, "Preparing execution in state {0}", state);
+						prepare();
+						prepared = true;
+						break;
+					}
+					while (System.nanoTime() - begin < 0) {
+						if (Thread.currentThread().isInterrupted()) {
+							throw new InterruptedException();
+						}
+					}
+					LOG.log(Level.FINE, "Starting armed execution ahead of allocation");
+					return true;
+				default:
+					this.outcome.completeExceptionally(new CancellationException("Allocation ended in state " + state));
+					return false;
+			}
+		}
+	}
+
 	public Future<T> getFuture() {
 		return this.result;
 	}
 
+	/**
+	 * Returns a future that completes as soon as the user code returned or
+	 * fails if the user code failed or could not be executed. In contrast to
+	 * {@link #getFuture()}, it does not wait for the allocation to be released
+	 * or monitored.
+	 *
+	 * @return the outcome of the user code execution
+	 */
+	public CompletableFuture<T> getOutcome() {
+		return this.outcome;
+	}
+
 	public RemoteAllocation getRemote() {
 		return this.remote;
 	}
@@ -220,6 +424,9 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 	@Override
 	public void allocationUpdated(ResourceAllocation allocation) {
 		synchronized (this) {
+			if (allocation.getState() == ALLOCATED) {
+				this.allocated = true;
+			}
 			this.notifyAll();
 		}
 		switch (allocation.getState()) {
@@ -238,6 +445,19 @@ public abstract class ExecutableResource<T> implements SchedulerListener, Execut
 		}
 	}
 
+	/**
+	 * Prepares the execution while the allocation is scheduled, e.g. to load
+	 * data or open devices before the slot begins. If the allocation is
+	 * granted without being scheduled first, preparation takes place right
+	 * before execution.
+	 *
+	 * @throws ExecutionException if preparation fails, which cancels the
+	 * allocation
+	 * @throws InterruptedException if interrupted during preparation
+	 */
+	public void prepare() throws ExecutionException, InterruptedException {
+	}
+
 	public abstract T execute() throws ExecutionException, InterruptedException;
 
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.RSBException;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
+
+/**
+ * Groups several allocations into one request that is either scheduled or
+ * rejected as a whole. All members share a common token that serves as
+ * correlation id, their requests are published back to back and a single
+ * timeout applies to the complete group. If any member fails before the group
+ * is scheduled, no further members are published and all members published so
+ * far are rolled back. Once the group is scheduled or rejected, it stops
+ * listening to its members.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class GangAllocation implements Schedulable, SchedulerListener {
+
+	private final static Logger LOG = Logger.getLogger(GangAllocation.class.getName());
+
+	private final Set<RemoteAllocation> members;
+	private final String token;
+	private final Object monitor = new Object();
+	private final Set<RemoteAllocation> rolledBack = new HashSet<>();
+	private State state = REQUESTED;
+
+	public GangAllocation(Collection<RemoteAllocation> members) {
+		if (members.isEmpty()) {
+			throw new IllegalArgumentException("No allocations found.");
+		}
+		this.members = new LinkedHashSet<>(members);
+		this.token = UUID.randomUUID().toString().substring(0, 6);
+		for (RemoteAllocation member : this.members) {
+			member.setToken(this.token);
+		}
+	}
+
+	public String getToken() {
+		return this.token;
+	}
+
+	public Set<RemoteAllocation> getMembers() {
+		return this.members;
+	}
+
+	public State getState() {
+		synchronized (this.monitor) {
+			return this.state;
+		}
+	}
+
+	@Override
+	public void schedule() throws RSBException {
+		LOG.log(Level.FINE, "scheduling {0} allocations with token ''{1}''", new Object[]{this.members.size(), this.token});
+		for (RemoteAllocation member : this.members) {
+			member.addSchedulerListener(this);
+		}
+		try {
+			for (RemoteAllocation member : this.members) {
+				if (getState() != REQUESTED) {
+					break;
+				}
+				member.schedule();
+			}
+		} catch (RSBException ex) {
+			reject("scheduling failed");
+			throw ex;
+		}
+		if (getState() == REJECTED) {
+//			members published while the group was being rejected
+			rollback();
+		}
+	}
+
+	public State await(long timeout) throws InterruptedException, TimeoutException {
+		synchronized (this.monitor) {
+			long start = System.currentTimeMillis();
+			long remaining = timeout;
+			while (this.state == REQUESTED && remaining > 0) {
+				this.monitor.wait(remaining);
+				remaining = timeout - (System.currentTimeMillis() - start);
+			}
+			if (this.state != REQUESTED) {
+				return this.state;
+			}
+		}
+		reject("timed out after " + timeout + "ms");
+		throw new TimeoutException("Allocation group '" + this.token + "' timed out after " + timeout + "ms.");
+	}
+
+	@Override
+	public void allocationUpdated(ResourceAllocation allocation) {
+		boolean failed = false;
+		boolean scheduled = false;
+		synchronized (this.monitor) {
+			if (this.state != REQUESTED) {
+				return;
+			}
+			boolean complete = true;
+			for (RemoteAllocation member : this.members) {
+				switch (member.getCurrentState()) {
+					case SCHEDULED:
+					case ALLOCATED:
+						break;
+					case REQUESTED:
+						complete = false;
+						break;
+					case REJECTED:
+					case CANCELLED:
+					case ABORTED:
+					case RELEASED:
+						failed = true;
+						break;
+				}
+			}
+			if (!failed && complete) {
+				LOG.log(Level.FINE, "allocation group ''{0}'' scheduled", this.token);
+				this.state = SCHEDULED;
+				this.monitor.notifyAll();
+				scheduled = true;
+			}
+		}
+		if (scheduled) {
+			detach();
+		}
+		if (failed) {
+			reject("member allocation '" + allocation.getId() + "' ended in state " + allocation.getState());
+		}
+	}
+
+	private void reject(String reason) {
+		synchronized (this.monitor) {
+			if (this.state != REQUESTED) {
+				return;
+			}
+			this.state = REJECTED;
+			this.monitor.notifyAll();
+		}
+		LOG.log(Level.WARNING, "allocation group ''{0}'' rejected ({1}), rolling back all members", new Object[]{this.token, reason});
+		detach();
+		rollback();
+	}
+
+	/**
+	 * Shuts down all published members that have not been rolled back yet.
+	 */
+	private void rollback() {
+		for (RemoteAllocation member : this.members) {
+			synchronized (this.monitor) {
+				if (!member.isScheduled() || !this.rolledBack.add(member)) {
+					continue;
+				}
+			}
+			try {
+				shutdown(member);
+			} catch (RSBException ex) {
+				LOG.log(Level.WARNING, "Could not roll back member allocation " + member, ex);
+			}
+		}
+	}
+
+	private void detach() {
+		for (RemoteAllocation member : this.members) {
+			member.removeSchedulerListener(this);
+		}
+	}
+
+	private void shutdown(RemoteAllocation member) throws RSBException {
+		switch (member.getCurrentState()) {
+			case REQUESTED:
+			case SCHEDULED:
+				member.cancel();
+				break;
+			case ALLOCATED:
+				member.abort();
+				break;
+			default:
+				break;
+		}
+	}
+
+	@Override
+	public void abort() throws RSBException {
+		for (RemoteAllocation member : this.members) {
+			member.abort();
+		}
+	}
+
+	@Override
+	public void cancel() throws RSBException {
+		for (RemoteAllocation member : this.members) {
+			member.cancel();
+		}
+	}
+
+	@Override
+	public void release() throws RSBException {
+		for (RemoteAllocation member : this.members) {
+			member.release();
+		}
+	}
+}
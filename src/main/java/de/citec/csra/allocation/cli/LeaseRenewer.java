@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.RSBException;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+
+/**
+ * Extends the slots of registered allocations shortly before their remaining
+ * time drops below a threshold. All leases are checked by a single scheduler
+ * thread, so that renewals of many allocations are batched.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class LeaseRenewer {
+
+	private final static Logger LOG = Logger.getLogger(LeaseRenewer.class.getName());
+	private final static long INTERVAL = 50;
+
+	private static LeaseRenewer instance;
+
+	private final ScheduledExecutorService scheduler;
+	private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+
+	public class Lease {
+
+		private final RemoteAllocation remote;
+		private final long threshold;
+		private final long amount;
+		private long renewedEnd = -1;
+		private long renewedAt;
+
+		private Lease(RemoteAllocation remote, long threshold, long amount) {
+			this.remote = remote;
+			this.threshold = threshold;
+			this.amount = amount;
+		}
+
+		public RemoteAllocation getRemote() {
+			return this.remote;
+		}
+
+		public void cancel() {
+			leases.remove(this);
+		}
+
+		private boolean isDue(long now) {
+			if (this.remote.getCurrentState() != ALLOCATED) {
+				return false;
+			}
+			if (this.remote.getRemainingTime() > this.threshold + INTERVAL) {
+				return false;
+			}
+			long end = this.remote.getSlot().getEnd().getTime();
+			return end != this.renewedEnd || now - this.renewedAt > this.remote.getTimeout();
+		}
+
+		private void renew(long now) throws RSBException {
+			this.renewedEnd = this.remote.getSlot().getEnd().getTime();
+			this.renewedAt = now;
+			LOG.log(Level.FINE, "renewing lease of ''{0}'' by {1}ms", new Object[]{this.remote, this.amount});
+			this.remote.extend(this.amount);
+		}
+	}
+
+	public static synchronized LeaseRenewer getInstance() {
+		if (instance == null) {
+			instance = new LeaseRenewer();
+		}
+		return instance;
+	}
+
+	private LeaseRenewer() {
+		this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "lease-renewer");
+			t.setDaemon(true);
+			return t;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::renew, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Keeps the given allocation alive until the returned lease is cancelled or
+	 * the allocation ends.
+	 *
+	 * @param remote the allocation to renew
+	 * @param threshold remaining time in ms at which the slot is extended
+	 * @param amount duration in ms by which the slot is extended
+	 * @return the lease handle
+	 */
+	public Lease register(RemoteAllocation remote, long threshold, long amount) {
+		Lease lease = new Lease(remote, threshold, amount);
+		this.leases.add(lease);
+		return lease;
+	}
+
+	private void renew() {
+		long now = System.currentTimeMillis();
+		for (Lease lease : this.leases) {
+			if (!lease.remote.isAlive()) {
+				this.leases.remove(lease);
+			} else if (lease.isDue(now)) {
+				try {
+					lease.renew(now);
+				} catch (RSBException | RuntimeException ex) {
+					LOG.log(Level.WARNING, "Could not renew lease of " + lease.remote, ex);
+				}
+			}
+		}
+	}
+}
@@ -16,15 +16,15 @@
  */
 package de.citec.csra.allocation.cli;
 
+import de.citec.csra.util.UpdatePublisher;
 import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import rsb.Event;
 import rsb.RSBException;
-import rsb.util.QueueAdapter;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
 
@@ -36,25 +36,47 @@ public class MonitoredResource implements SchedulerListener, Executable {
 
 	private final static Logger LOG = Logger.getLogger(MonitoredResource.class.getName());
 
-	private final BlockingQueue<ResourceAllocation> incoming;
-	private final QueueAdapter qa;
+	private final ConflatingQueueAdapter qa;
 	private final LinkedBlockingDeque<State> queue = new LinkedBlockingDeque<>();
 	private final Object monitor = new Object();
 	private final String[] resources;
 	private boolean alive;
+	private boolean bootstrap;
+	private final UpdatePublisher<ResourceAllocation> publisher = new UpdatePublisher<>();
 
 	public MonitoredResource(String... resources) {
-		this.qa = new QueueAdapter();
-		this.incoming = qa.getQueue();
+		this.qa = new ConflatingQueueAdapter(this::matches);
 		this.resources = resources;
 	}
 
+	private boolean matches(ResourceAllocation update) {
+		for (String r : resources) {
+			for (String in : update.getResourceIdsList()) {
+				if (r.equals(in)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Enables the initial state bootstrap. On startup, the monitor is seeded
+	 * from an active {@link AllocationCache} in this process or, if there is
+	 * none, requests a snapshot of its resources at the allocation scope.
+	 *
+	 * @param bootstrap whether to request the current state on startup
+	 */
+	public void setBootstrap(boolean bootstrap) {
+		this.bootstrap = bootstrap;
+	}
+
 	@Override
 	public void startup() throws RSBException {
 		String printStr = Arrays.toString(resources);
 		LOG.log(Level.FINE, "activating resource listener for: ''{0}''", printStr);
 		try {
-			RemoteAllocationService.getInstance().addHandler(qa, true);
+			RemoteAllocationService.getInstance().addHandler(qa, true, resources);
 			alive = true;
 		} catch (InterruptedException ex) {
 			LOG.log(Level.SEVERE, "Interrupted during handler addition, shutting down", ex);
@@ -64,21 +86,9 @@ public class MonitoredResource implements SchedulerListener, Executable {
 		new Thread(() -> {
 			while (alive) {
 				try {
-					ResourceAllocation update = incoming.poll(2000, TimeUnit.MILLISECONDS);
+					Event update = qa.poll(2000, TimeUnit.MILLISECONDS);
 					if (update != null) {
-						boolean match = false;
-						search:
-						for (String r : resources) {
-							for (String in : update.getResourceIdsList()) {
-								if (r.equals(in)) {
-									match = true;
-									break search;
-								}
-							}
-						}
-						if (match) {
-							allocationUpdated(update);
-						}
+						allocationUpdated((ResourceAllocation) update.getData());
 					}
 				} catch (InterruptedException ex) {
 					LOG.log(Level.SEVERE, "Event dispatching interrupted", ex);
@@ -87,11 +97,23 @@ public class MonitoredResource implements SchedulerListener, Executable {
 				}
 			}
 		}, "resource-listener@" + printStr).start();
+
+		if (this.bootstrap) {
+			AllocationCache cache = AllocationCache.getActive();
+			if (cache != null) {
+				LOG.log(Level.FINE, "seeding resource listener from local cache: ''{0}''", printStr);
+				cache.getSnapshot(resources).forEach(this::allocationUpdated);
+			} else {
+				LOG.log(Level.FINE, "requesting snapshot for: ''{0}''", printStr);
+				RemoteAllocationService.getInstance().requestSnapshot(resources);
+			}
+		}
 	}
 
 	@Override
 	public void shutdown() throws RSBException {
 		alive = false;
+		this.publisher.complete();
 		try {
 			RemoteAllocationService.getInstance().removeHandler(qa, true);
 		} catch (InterruptedException ex) {
@@ -105,6 +127,17 @@ public class MonitoredResource implements SchedulerListener, Executable {
 			this.queue.add(allocation.getState());
 			this.monitor.notifyAll();
 		}
+		this.publisher.accept(allocation);
+	}
+
+	/**
+	 * Returns a reactive streams publisher of all allocation updates concerning
+	 * the monitored resources, which completes on shutdown.
+	 *
+	 * @return the update publisher
+	 */
+	public UpdatePublisher<ResourceAllocation> getPublisher() {
+		return this.publisher;
 	}
 
 	public State getState() {
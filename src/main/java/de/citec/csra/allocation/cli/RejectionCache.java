@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+
+/**
+ * Remembers recently rejected allocation requests. A new request is considered
+ * to be rejected as well if it covers all resources of a remembered rejection,
+ * does not have a higher priority and its slot overlaps the rejected slot.
+ * Rejections are forgotten after a while or as soon as an allocation of any
+ * of their resources is observed to end. If enabled, remote allocations that
+ * match a remembered rejection are rejected locally without contacting the
+ * server.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class RejectionCache extends AbstractEventHandler {
+
+	private final static Logger LOG = Logger.getLogger(RejectionCache.class.getName());
+	public final static long TTL = 5000;
+	public final static int CAPACITY = 1024;
+
+	private static RejectionCache instance;
+
+	private final List<Rejection> rejections = new LinkedList<>();
+	private final Set<Scope> observed = new HashSet<>();
+	private volatile boolean enabled;
+	private long ttl = TTL;
+	private long hits;
+
+	private static class Rejection {
+
+		private final Set<String> resources;
+		private final int priority;
+		private final long begin;
+		private final long end;
+		private final long expiry;
+
+		private Rejection(ResourceAllocation allocation, long expiry) {
+			this.resources = new HashSet<>(allocation.getResourceIdsList());
+			this.priority = allocation.getPriority().ordinal();
+			this.begin = allocation.getSlot().getBegin().getTime();
+			this.end = allocation.getSlot().getEnd().getTime();
+			this.expiry = expiry;
+		}
+
+		private boolean matches(ResourceAllocation request) {
+			return request.getPriority().ordinal() <= this.priority
+					&& request.getSlot().getBegin().getTime() < this.end
+					&& request.getSlot().getEnd().getTime() > this.begin
+					&& request.getResourceIdsList().containsAll(this.resources);
+		}
+
+		private boolean concerns(Collection<String> resources) {
+			for (String resource : resources) {
+				if (this.resources.contains(resource)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	public static synchronized RejectionCache getInstance() {
+		if (instance == null) {
+			instance = new RejectionCache();
+		}
+		return instance;
+	}
+
+	private RejectionCache() {
+	}
+
+	/**
+	 * Enables local rejection of allocation requests that match a recent
+	 * rejection by the server.
+	 *
+	 * @param enabled whether to reject matching requests locally
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			synchronized (this) {
+				this.rejections.clear();
+				notifyAll();
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	public synchronized void setTimeToLive(long ttl) {
+		this.ttl = ttl;
+	}
+
+	void record(ResourceAllocation rejected) {
+		if (!this.enabled) {
+			return;
+		}
+		synchronized (this) {
+			this.rejections.add(new Rejection(rejected, System.currentTimeMillis() + this.ttl));
+			if (this.rejections.size() > CAPACITY) {
+				this.rejections.remove(0);
+			}
+		}
+		observe(rejected.getResourceIdsList());
+	}
+
+	private void observe(List<String> resources) {
+		try {
+			RemoteAllocationService service = RemoteAllocationService.getInstance();
+			boolean added = false;
+			if (!RemoteAllocationService.isPartitioned()) {
+				synchronized (this) {
+					added = this.observed.add(new Scope(RemoteAllocationService.getScope()));
+				}
+				if (added) {
+					service.addHandler(this, true);
+				}
+			} else {
+				for (String resource : resources) {
+					synchronized (this) {
+						if (!this.observed.add(RemoteAllocationService.getPartitionScope(resource))) {
+							continue;
+						}
+					}
+					service.addHandler(this, true, resource);
+					added = true;
+				}
+			}
+			if (added && RemoteAllocationService.isDeltaEncoding()) {
+//				delta updates of running allocations are only decodable after a full record
+				service.requestSnapshot(resources.toArray(new String[resources.size()]));
+			}
+		} catch (InterruptedException ex) {
+			LOG.log(Level.WARNING, "Interrupted during handler addition, rejections may become stale", ex);
+			Thread.currentThread().interrupt();
+		} catch (RSBException ex) {
+			LOG.log(Level.WARNING, "Could not observe resources, rejections may become stale", ex);
+		}
+	}
+
+	/**
+	 * Checks whether the given request matches a recent rejection.
+	 *
+	 * @param request the allocation request
+	 * @return true if the request would most likely be rejected
+	 */
+	public boolean isRejected(ResourceAllocation request) {
+		if (!this.enabled) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<Rejection> it = this.rejections.iterator();
+			while (it.hasNext()) {
+				Rejection r = it.next();
+				if (r.expiry < now) {
+					it.remove();
+				} else if (r.matches(request)) {
+					this.hits++;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits until no rejection concerning the given resources is remembered
+	 * anymore, e.g. because an allocation of one of them ended.
+	 *
+	 * @param timeout the maximum time to wait in ms
+	 * @param resources the resources
+	 * @return true if the resources may be free, false on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized boolean awaitFree(long timeout, String... resources) throws InterruptedException {
+		List<String> wanted = Arrays.asList(resources);
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			long now = System.currentTimeMillis();
+			long next = deadline;
+			boolean blocked = false;
+			Iterator<Rejection> it = this.rejections.iterator();
+			while (it.hasNext()) {
+				Rejection r = it.next();
+				if (r.expiry < now) {
+					it.remove();
+				} else if (r.concerns(wanted)) {
+					blocked = true;
+					next = Math.min(next, r.expiry);
+				}
+			}
+			if (!blocked) {
+				return true;
+			}
+			if (now >= deadline) {
+				return false;
+			}
+			wait(Math.max(1, next - now));
+		}
+	}
+
+	public synchronized long getHitCount() {
+		return this.hits;
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		if (!(event.getData() instanceof ResourceAllocation)) {
+			return;
+		}
+		ResourceAllocation allocation = (ResourceAllocation) event.getData();
+		switch (allocation.getState()) {
+			case CANCELLED:
+			case ABORTED:
+			case RELEASED:
+				synchronized (this) {
+					boolean changed = false;
+					Iterator<Rejection> it = this.rejections.iterator();
+					while (it.hasNext()) {
+						if (it.next().concerns(allocation.getResourceIdsList())) {
+							it.remove();
+							changed = true;
+						}
+					}
+					if (changed) {
+						LOG.log(Level.FINE, "allocation ''{0}'' ended, forgetting rejections of its resources", allocation.getId());
+						notifyAll();
+					}
+				}
+				break;
+			default:
+				break;
+		}
+	}
+}
@@ -16,18 +16,26 @@
  */
 package de.citec.csra.allocation.cli;
 
+import de.citec.csra.util.ListenerMailbox;
+import de.citec.csra.util.UpdatePublisher;
 import de.citec.csra.rst.util.IntervalUtils;
-import static de.citec.csra.allocation.cli.RemoteAllocationService.TIMEOUT;
 import de.citec.csra.rst.util.StringRepresentation;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import rsb.Event;
+import rsb.ParticipantId;
 import rsb.RSBException;
-import rsb.util.QueueAdapter;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
@@ -42,14 +50,27 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 
 	private final static Logger LOG = Logger.getLogger(RemoteAllocation.class.getName());
 
-	private final QueueAdapter qa;
-	private final BlockingQueue<ResourceAllocation> queue;
-	private final HashSet<SchedulerListener> listeners;
+	private final ConflatingQueueAdapter qa;
+	private final HashMap<SchedulerListener, Consumer<ResourceAllocation>> listeners;
 	private final Object monitor = new Object();
 
 	private ResourceAllocation allocation;
 	private RemoteAllocationService remoteService;
 	private boolean inc;
+	private long sentAt;
+	private boolean hedged;
+	private boolean scheduled;
+	private boolean coalescing;
+	private final Object slots = new Object();
+	private Interval inflight;
+	private Interval pending;
+	private CompletableFuture<ResourceAllocation> confirmation;
+	private CompletableFuture<ResourceAllocation> next;
+	private UpdatePublisher<ResourceAllocation> publisher;
+	private final AtomicLong discarded = new AtomicLong();
+	private ParticipantId origin;
+	private long version;
+	private long created;
 
 	public RemoteAllocation(ResourceAllocation allocation) {
 		this(ResourceAllocation.newBuilder(allocation));
@@ -64,9 +85,8 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 		}
 		builder.setState(REQUESTED);
 		this.allocation = builder.build();
-		this.listeners = new HashSet<>();
-		this.qa = new QueueAdapter();
-		this.queue = qa.getQueue();
+		this.listeners = new HashMap<>();
+		this.qa = new ConflatingQueueAdapter((a) -> a.getId().equals(this.allocation.getId()));
 	}
 
 	public boolean hasToken() {
@@ -96,10 +116,40 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 	
 	public void addSchedulerListener(SchedulerListener l) {
 		synchronized (this.listeners) {
-			this.listeners.add(l);
+			this.listeners.put(l, l::allocationUpdated);
 		}
 	}
 
+	/**
+	 * Adds a listener that is notified asynchronously using the given executor.
+	 * Each listener receives its updates in order through a bounded mailbox, so
+	 * slow listeners do not delay the dispatcher or other listeners.
+	 *
+	 * @param l the listener to add
+	 * @param executor the executor used for delivery
+	 */
+	public void addSchedulerListener(SchedulerListener l, Executor executor) {
+		synchronized (this.listeners) {
+			this.listeners.put(l, new ListenerMailbox<>(l::allocationUpdated, executor));
+		}
+	}
+
+	/**
+	 * Returns a reactive streams publisher of the updates of this allocation,
+	 * which completes when the allocation ends.
+	 *
+	 * @return the update publisher
+	 */
+	public synchronized UpdatePublisher<ResourceAllocation> getPublisher() {
+		if (this.publisher == null) {
+			this.publisher = new UpdatePublisher<>();
+			if (!isAlive()) {
+				this.publisher.complete();
+			}
+		}
+		return this.publisher;
+	}
+
 	public void removeSchedulerListener(SchedulerListener l) {
 		synchronized (this.listeners) {
 			this.listeners.remove(l);
@@ -127,6 +177,86 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 		}
 	}
 
+	/**
+	 * Enables coalescing of slot adjustments. While a slot request is pending at
+	 * the server, further calls to {@link Adjustable} methods only update the
+	 * target interval, which is sent once the pending request is answered.
+	 *
+	 * @param coalescing whether to keep at most one slot request in flight
+	 */
+	public void setCoalescing(boolean coalescing) {
+		synchronized (this.slots) {
+			this.coalescing = coalescing;
+		}
+	}
+
+	public boolean isCoalescing() {
+		synchronized (this.slots) {
+			return this.coalescing;
+		}
+	}
+
+	/**
+	 * Returns a future that completes with the server update answering the most
+	 * recent slot adjustment, i.e. the first server update received after the
+	 * adjustment was sent. The server may have granted a different slot than
+	 * requested, which is then reflected by the update. Coalesced adjustments
+	 * share the same future.
+	 *
+	 * @return the pending slot confirmation or a completed future if no
+	 * adjustment is pending
+	 */
+	public Future<ResourceAllocation> getSlotConfirmation() {
+		synchronized (this.slots) {
+			if (this.next != null) {
+				return this.next;
+			} else if (this.confirmation != null) {
+				return this.confirmation;
+			} else {
+				return CompletableFuture.completedFuture(this.allocation);
+			}
+		}
+	}
+
+	private Interval getTargetSlot() {
+		synchronized (this.slots) {
+			if (this.pending != null) {
+				return this.pending;
+			} else if (this.inflight != null) {
+				return this.inflight;
+			} else {
+				return this.allocation.getSlot();
+			}
+		}
+	}
+
+	public synchronized boolean isScheduled() {
+		return this.scheduled;
+	}
+
+	public Interval getSlot() {
+		return this.allocation.getSlot();
+	}
+
+	protected ResourceAllocation getAllocation() {
+		return this.allocation;
+	}
+
+	/**
+	 * Returns the time to wait for a server response to a request of this
+	 * allocation, see {@link RemoteAllocationService#getTimeout(ResourceAllocation)}.
+	 *
+	 * @return the timeout in ms
+	 */
+	long getTimeout() {
+		RemoteAllocationService service = this.remoteService;
+		return service != null ? service.getTimeout(this.allocation) : RemoteAllocationService.TIMEOUT;
+	}
+
+	public LeaseRenewer.Lease keepAlive(long threshold, long amount) {
+		return LeaseRenewer.getInstance().register(this, threshold, amount);
+	}
+
 	@Override
 	public State getCurrentState() {
 		return this.allocation.getState();
@@ -150,15 +280,39 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 
 	@Override
 	public void schedule() throws RSBException {
+		synchronized (this) {
+			this.scheduled = true;
+		}
+		if (RejectionCache.getInstance().isRejected(this.allocation)) {
+			LOG.log(Level.FINE,
+					"resource allocation matches a recent rejection, rejecting locally: ''{0}''",
+					allocation.toString().replaceAll("\n", " "));
+			allocationUpdated(ResourceAllocation.newBuilder(this.allocation).setState(REJECTED).build());
+			return;
+		}
 		LOG.log(Level.FINE,
 				"resource allocation scheduled by client: ''{0}''",
 				allocation.toString().replaceAll("\n", " "));
+		this.remoteService = RemoteAllocationService.getInstance();
+		ResourceAllocation request = this.allocation;
+		long timeout = this.remoteService.getTimeout(request);
+		expectResponse();
 		new Thread(() -> {
 			while (isAlive()) {
 				try {
-					ResourceAllocation update = queue.poll(2000, TimeUnit.MILLISECONDS);
-					if (update != null && update.getId().equals(allocation.getId())) {
-						allocationUpdated(update);
+					Event update = qa.poll(2000, TimeUnit.MILLISECONDS);
+					if (update != null) {
+						ResourceAllocation data = (ResourceAllocation) update.getData();
+						if (!isAlive() || RemoteAllocationService.isSnapshotReply(update) || !isCurrent(update)) {
+							LOG.log(Level.FINER, "discarding stale server update ({0} in total): ''{1}''",
+									new Object[]{this.discarded.incrementAndGet(), data.toString().replaceAll("\n", " ")});
+						} else if (isDuplicate(data)) {
+							LOG.log(Level.FINER, "suppressing duplicate server update ({0} in total): ''{1}''",
+									new Object[]{this.discarded.incrementAndGet(), data.toString().replaceAll("\n", " ")});
+							apply(data, false);
+						} else {
+							allocationUpdated(data);
+						}
 					}
 				} catch (InterruptedException ex) {
 					LOG.log(Level.SEVERE, "Event dispatching interrupted", ex);
@@ -167,23 +321,20 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 				}
 			}
 		}, "allocation-dispatcher#" + this.allocation.getId()).start();
-		synchronized (this.monitor) {
-			this.inc = false;
-		}
 		new Thread(() -> {
 			try {
 				synchronized (this.monitor) {
-					this.monitor.wait(TIMEOUT);
-					if (!this.inc) {
+					if (!awaitResponse(request, timeout)) {
 						State newState = CANCELLED;
 						ResourceAllocation shutdown = ResourceAllocation.newBuilder(this.allocation).setState(newState).build();
 						LOG.log(Level.WARNING,
 								"client allocation request timed out after {0}ms, shutting down ''{1}'' -> ''{2}'' ({3})",
 								new Object[]{
-									TIMEOUT,
+									timeout,
 									allocation.getState(),
 									newState,
 									shutdown.toString().replaceAll("\n", " ")});
+						this.sentAt = 0;
 						allocationUpdated(shutdown);
 					}
 				}
@@ -194,9 +345,8 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 		}, "allocation-request-timeout#" + this.allocation.getId()).start();
 		try {
 			LOG.log(Level.FINE, "start listening to server updates");
-			this.remoteService = RemoteAllocationService.getInstance();
-			this.remoteService.addHandler(this.qa, true);
-			this.remoteService.update(this.allocation);
+			this.remoteService.addHandler(this.qa, true, this.allocation);
+			send(request);
 		} catch (InterruptedException ex) {
 			LOG.log(Level.SEVERE, "Could not add handler, skipping remote update", ex);
 		}
@@ -217,20 +367,40 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 		requestState(CANCELLED);
 	}
 
-	private void requestSlot(Interval interval) throws RSBException {
+	protected void requestSlot(Interval interval) throws RSBException {
+		if (isAlive() && this.remoteService != null) {
+			synchronized (this.slots) {
+				if (this.coalescing) {
+					if (this.inflight != null) {
+						LOG.log(Level.FINER,
+								"slot request in flight, coalescing client allocation slot change ({0})",
+								interval.toString().replaceAll("\n", " "));
+						this.pending = interval;
+						if (this.next == null) {
+							this.next = new CompletableFuture<>();
+						}
+						return;
+					}
+					this.inflight = interval;
+					this.confirmation = new CompletableFuture<>();
+				}
+			}
+		}
+		sendSlot(interval);
+	}
+
+	private void sendSlot(Interval interval) throws RSBException {
 		if (isAlive()) {
 			ResourceAllocation request = ResourceAllocation.newBuilder(this.allocation).setSlot(interval).build();
 			if (this.remoteService == null) {
 				this.allocation = request;
 			} else {
-				synchronized (this.monitor) {
-					this.inc = false;
-				}
+				long timeout = this.remoteService.getTimeout(request);
+				expectResponse();
 				new Thread(() -> {
 					try {
 						synchronized (this.monitor) {
-							this.monitor.wait(TIMEOUT);
-							if (isAlive() && !this.inc) {
+							if (!awaitResponse(request, timeout) && isAlive()) {
 								State newState;
 								switch (this.allocation.getState()) {
 									case REQUESTED:
@@ -248,10 +418,11 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 								LOG.log(Level.WARNING,
 										"client slot state change timed out after {0}ms, shutting down ''{1}'' -> ''{2}'' ({3})",
 										new Object[]{
-											TIMEOUT,
+											timeout,
 											allocation.getState(),
 											newState,
 											shutdown.toString().replaceAll("\n", " ")});
+								this.sentAt = 0;
 								allocationUpdated(shutdown);
 							}
 						}
@@ -266,7 +437,7 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 							allocation.getSlot().toString().replaceAll("\n", " "),
 							interval.toString().replaceAll("\n", " "),
 							request.toString().replaceAll("\n", " ")});
-				this.remoteService.update(request);
+				send(request);
 			}
 		} else {
 			LOG.log(Level.FINE,
@@ -275,28 +446,27 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 		}
 	}
 
-	private void requestState(State newState) throws RSBException {
+	protected void requestState(State newState) throws RSBException {
 		if (isAlive()) {
 			ResourceAllocation request = ResourceAllocation.newBuilder(this.allocation).setState(newState).build();
 			switch (newState) {
 				case ABORTED:
 				case CANCELLED:
 				case RELEASED:
-					synchronized (this.monitor) {
-						this.inc = false;
-					}
+					long timeout = this.remoteService.getTimeout(request);
+					expectResponse();
 					new Thread(() -> {
 						try {
 							synchronized (this.monitor) {
-								this.monitor.wait(TIMEOUT);
-								if (!this.inc) {
+								if (!awaitResponse(request, timeout)) {
 									LOG.log(Level.WARNING,
 											"client allocation state change timed out after {0}ms, forcing client update ''{1}'' -> ''{2}'' ({3})",
 											new Object[]{
-												TIMEOUT,
+												timeout,
 												allocation.getState(),
 												newState,
 												request.toString().replaceAll("\n", " ")});
+									this.sentAt = 0;
 									allocationUpdated(request);
 								}
 							}
@@ -311,7 +481,7 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 								allocation.getState(),
 								newState,
 								request.toString().replaceAll("\n", " ")});
-					this.remoteService.update(request);
+					send(request);
 					break;
 				case REJECTED:
 				case ALLOCATED:
@@ -329,8 +499,138 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 		}
 	}
 
+	/**
+	 * Prepares waiting for the response to a new request.
+	 */
+	private void expectResponse() {
+		synchronized (this.monitor) {
+			this.inc = false;
+			this.hedged = false;
+			this.sentAt = 0;
+		}
+	}
+
+	/**
+	 * Publishes a request. The round trip time is measured from right before
+	 * the publication.
+	 *
+	 * @param request the request to publish
+	 * @throws RSBException if the request cannot be published
+	 */
+	private void send(ResourceAllocation request) throws RSBException {
+		synchronized (this.monitor) {
+			if (!this.inc) {
+				this.sentAt = System.nanoTime();
+			}
+		}
+		this.remoteService.update(request);
+	}
+
+	/**
+	 * Waits for the server to respond to a request. If hedging is enabled and
+	 * there is no response in time, the request is published once more. Round
+	 * trips of hedged requests are ambiguous and therefore not sampled. Has to
+	 * be called while holding the monitor.
+	 *
+	 * @param request the published request
+	 * @param timeout the time to wait for each publication in ms
+	 * @return true if the server responded
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private boolean awaitResponse(ResourceAllocation request, long timeout) throws InterruptedException {
+		if (awaitResponse(timeout)) {
+			return true;
+		}
+		if (!RemoteAllocationService.isHedging() || !isAlive()) {
+			return false;
+		}
+		LOG.log(Level.FINE,
+				"no server response after {0}ms, publishing request again ({1})",
+				new Object[]{timeout, request.toString().replaceAll("\n", " ")});
+		this.hedged = true;
+		try {
+			this.remoteService.update(request);
+		} catch (RSBException ex) {
+			LOG.log(Level.WARNING, "Could not publish hedged request", ex);
+			return false;
+		}
+		return awaitResponse(timeout);
+	}
+
+	private boolean awaitResponse(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (!this.inc && remaining > 0) {
+			this.monitor.wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return this.inc;
+	}
+
 	@Override
 	public final void allocationUpdated(ResourceAllocation update) {
+		apply(update, true);
+	}
+
+	/**
+	 * Checks whether a server update is newer than the last accepted one.
+	 * Updates of the same origin are ordered by their version. Updates of
+	 * other origins, e.g. of a restarted scheduler, are only accepted if they
+	 * were not created before the last accepted update and do not set the
+	 * allocation back to an earlier state.
+	 *
+	 * @param event the update event
+	 * @return true if the update is to be applied
+	 */
+	private boolean isCurrent(Event event) {
+		long v;
+		try {
+			v = event.getMetaData().hasUserInfo(AllocationCodec.VERSION)
+					? Long.parseLong(event.getMetaData().getUserInfo(AllocationCodec.VERSION))
+					: event.getId().getSequenceNumber();
+		} catch (NumberFormatException ex) {
+			v = event.getId().getSequenceNumber();
+		}
+		ParticipantId origin = event.getId().getParticipantId();
+		long created = event.getMetaData().getCreateTime();
+		if (origin.equals(this.origin)
+				? v <= this.version
+				: created < this.created || getStage(((ResourceAllocation) event.getData()).getState()) < getStage(this.allocation.getState())) {
+			return false;
+		}
+		this.origin = origin;
+		this.version = v;
+		this.created = Math.max(this.created, created);
+		return true;
+	}
+
+	private static int getStage(State state) {
+		switch (state) {
+			case REQUESTED:
+				return 0;
+			case SCHEDULED:
+				return 1;
+			case ALLOCATED:
+				return 2;
+			case REJECTED:
+			case CANCELLED:
+			case ABORTED:
+			case RELEASED:
+			default:
+				return 3;
+		}
+	}
+
+	private boolean isDuplicate(ResourceAllocation update) {
+		return update.getState() == this.allocation.getState()
+				&& update.getSlot().equals(this.allocation.getSlot());
+	}
+
+	public long getDiscardedCount() {
+		return this.discarded.get();
+	}
+
+	private void apply(ResourceAllocation update, boolean dispatch) {
 		LOG.log(Level.FINE,
 				"resource allocation updated by server ''{0}'' -> ''{1}'' ({2})",
 				new Object[]{
@@ -338,25 +638,73 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 					update.getState(),
 					update.toString().replaceAll("\n", " ")});
 		this.allocation = update;
+		if (update.getState() == REJECTED && dispatch && this.remoteService != null) {
+			RejectionCache.getInstance().record(update);
+		}
 
+		boolean answer;
 		synchronized (this.monitor) {
+			if (!this.inc && this.sentAt != 0 && !this.hedged && this.remoteService != null) {
+				this.remoteService.sample(this.allocation, (System.nanoTime() - this.sentAt) / 1e6);
+			}
+			answer = !this.inc || !isAlive();
 			this.inc = true;
+			this.sentAt = 0;
 			this.monitor.notifyAll();
 		}
 
-		synchronized (this.listeners) {
-			((HashSet<SchedulerListener>) listeners.clone()).forEach((l) -> {
-				l.allocationUpdated(allocation);
-			});
+		Interval followup = null;
+		synchronized (this.slots) {
+			if (this.confirmation != null && answer) {
+				this.confirmation.complete(update);
+				this.confirmation = null;
+				this.inflight = null;
+				if (this.pending != null && isAlive()) {
+					followup = this.pending;
+					this.inflight = this.pending;
+					this.confirmation = this.next;
+				} else if (this.next != null) {
+					this.next.complete(update);
+				}
+				this.pending = null;
+				this.next = null;
+			}
+		}
+
+		List<Consumer<ResourceAllocation>> receivers = new ArrayList<>();
+		if (dispatch) {
+			synchronized (this.listeners) {
+				receivers.addAll(this.listeners.values());
+			}
 		}
+		receivers.forEach((l) -> {
+			l.accept(update);
+		});
 
-		if (!isAlive()) {
+		UpdatePublisher<ResourceAllocation> p;
+		synchronized (this) {
+			p = this.publisher;
+		}
+		if (p != null && dispatch) {
+			p.accept(update);
+			if (!isAlive()) {
+				p.complete();
+			}
+		}
+
+		if (!isAlive() && this.remoteService != null) {
 			try {
 				LOG.log(Level.FINE, "stop listening to server updates");
 				this.remoteService.removeHandler(this.qa, true);
 			} catch (InterruptedException | RSBException ex) {
 				LOG.log(Level.SEVERE, "Could not remove handler", ex);
 			}
+		} else if (followup != null) {
+			try {
+				sendSlot(followup);
+			} catch (RSBException ex) {
+				LOG.log(Level.WARNING, "Could not send coalesced slot change", ex);
+			}
 		}
 	}
 
@@ -370,28 +718,32 @@ public class RemoteAllocation implements Schedulable, Adjustable, SchedulerListe
 
 	@Override
 	public void shift(long amount) throws RSBException {
-		long newBegin = this.allocation.getSlot().getBegin().getTime() + amount;
-		long newEnd = this.allocation.getSlot().getEnd().getTime() + amount;
+		Interval slot = getTargetSlot();
+		long newBegin = slot.getBegin().getTime() + amount;
+		long newEnd = slot.getEnd().getTime() + amount;
 		requestSlot(IntervalUtils.buildRst(newBegin, newEnd));
 	}
 
 	@Override
 	public void shiftTo(long timestamp) throws RSBException {
+		Interval slot = getTargetSlot();
 		long newBegin = timestamp;
-		long newEnd = newBegin + this.allocation.getSlot().getEnd().getTime() - this.allocation.getSlot().getBegin().getTime();
+		long newEnd = newBegin + slot.getEnd().getTime() - slot.getBegin().getTime();
 		requestSlot(IntervalUtils.buildRst(newBegin, newEnd));
 	}
 
 	@Override
 	public void extend(long amount) throws RSBException {
-		long newBegin = this.allocation.getSlot().getBegin().getTime();
-		long newEnd = this.allocation.getSlot().getEnd().getTime() + amount;
+		Interval slot = getTargetSlot();
+		long newBegin = slot.getBegin().getTime();
+		long newEnd = slot.getEnd().getTime() + amount;
 		requestSlot(IntervalUtils.buildRst(newBegin, newEnd));
 	}
 
 	@Override
 	public void extendTo(long timestamp) throws RSBException {
-		long newBegin = this.allocation.getSlot().getBegin().getTime();
+		Interval slot = getTargetSlot();
+		long newBegin = slot.getBegin().getTime();
 		long newEnd = timestamp;
 		requestSlot(IntervalUtils.buildRst(newBegin, newEnd));
 	}
@@ -16,13 +16,32 @@
  */
 package de.citec.csra.allocation.cli;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import rsb.AbstractEventHandler;
+import rsb.Event;
 import rsb.Factory;
 import rsb.Handler;
 import rsb.Informer;
 import rsb.Listener;
 import rsb.RSBException;
+import rsb.Scope;
 import rsb.converter.DefaultConverterRepository;
 import rsb.converter.ProtocolBufferConverter;
 import rsb.filter.OriginFilter;
@@ -30,6 +49,28 @@ import rst.communicationpatterns.ResourceAllocationType;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
 
 /**
+ * Publishes and receives resource allocations at the allocation scope.
+ * <p>
+ * In the optional partitioned layout, allocations are exchanged on sub-scopes
+ * of the allocation scope that are derived from the namespace of their
+ * resources (the part of a resource id before the first ':'). Requests are
+ * published on the partition of their first resource, which is also the only
+ * partition a {@link RemoteAllocation} listens to. Resource monitors subscribe
+ * to the partitions of all their resources. A scheduler listening at the
+ * allocation scope itself still receives all requests but needs to publish
+ * its updates on every partition of the allocation's resources.
+ * <p>
+ * New participants can bootstrap their view with a snapshot query: an event
+ * with method {@value #SNAPSHOT} whose data is the newline separated list of
+ * resource ids of interest. Responders, i.e. the scheduler or an
+ * {@link AllocationCache}, answer by republishing each live allocation
+ * involving one of these resources at the scope of the query, with method
+ * {@value #SNAPSHOT} and the query as cause. Each answer is completed by an
+ * event with method {@value #SNAPSHOT_END} and the query as cause, whose data
+ * is the number of allocations in the answer, so that empty answers are
+ * recognized as well. Answers of caches additionally carry the user info
+ * {@value #CACHED} on all their events, caches only answer if the scheduler
+ * did not answer in time.
  *
  * @author Patrick Holthaus
  * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
@@ -37,9 +78,26 @@ import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
 public class RemoteAllocationService {
 
 	public final static long TIMEOUT = 5000;
+	public final static String SNAPSHOT = "SNAPSHOT";
+	public final static String SNAPSHOT_END = "SNAPSHOT_END";
+	public final static String CACHED = "cached";
+	private final static String SNAPSHOT_SEPARATOR = "\n";
 	private final static String SCOPEVAR = "SCOPE_ALLOCATION";
+	private final static String PARTITIONVAR = "SCOPE_ALLOCATION_PARTITIONED";
 	private final static String FALLBACK = "/coordination/allocation/";
+	private final static String NAMESPACE_SEPARATOR = ":";
+	private final static long FLUSH_INTERVAL = 0;
+	private final static int BATCH_SIZE = 64;
+	private final static long MIN_TIMEOUT = 100;
 	private static String scope;
+	private static Boolean partitioned;
+	private static boolean delta;
+	private static long flushInterval = FLUSH_INTERVAL;
+	private static int batchSize = BATCH_SIZE;
+	private static boolean adaptive;
+	private static long minTimeout = MIN_TIMEOUT;
+	private static long maxTimeout = TIMEOUT;
+	private static boolean hedging;
 
 	static {
 		DefaultConverterRepository.getDefaultConverterRepository()
@@ -58,11 +116,184 @@ public class RemoteAllocationService {
 		return scope;
 	}
 
+	public static synchronized boolean isPartitioned() {
+		if (partitioned == null) {
+			partitioned = Boolean.parseBoolean(System.getenv(PARTITIONVAR));
+		}
+		return partitioned;
+	}
+
+	/**
+	 * Selects the scope layout. Has to be called before the service instance is
+	 * created, otherwise ${SCOPE_ALLOCATION_PARTITIONED} is evaluated.
+	 *
+	 * @param enable whether to use resource partitions
+	 */
+	public static synchronized void setPartitioned(boolean enable) {
+		if (instance != null) {
+			LOG.log(Level.WARNING, "Changing scope layout of active allocation service, existing handlers are not migrated");
+		}
+		partitioned = enable;
+	}
+
+	/**
+	 * Configures the publishing pipeline. Has to be called before the service
+	 * instance is created.
+	 *
+	 * @param interval time in ms the sender waits for further requests before
+	 * publishing a batch, 0 publishes immediately
+	 * @param size maximum number of requests published per batch
+	 */
+	public static synchronized void setBatching(long interval, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Batch size must be positive.");
+		}
+		flushInterval = interval;
+		batchSize = size;
+	}
+
+	/**
+	 * Enables delta encoding of allocation updates. Has to be called before the
+	 * service instance is created. All participants at the allocation scope,
+	 * including the scheduler, need to be able to decode delta updates.
+	 *
+	 * @param enable whether to omit unchanged description and resource ids
+	 */
+	public static synchronized void setDeltaEncoding(boolean enable) {
+		delta = enable;
+	}
+
+	public static synchronized boolean isDeltaEncoding() {
+		return delta;
+	}
+
+	/**
+	 * Derives request timeouts from the observed round trip times of
+	 * allocation requests instead of using the fixed {@link #TIMEOUT}. Round
+	 * trip times are tracked separately for each publishing scope. Has to be
+	 * called before the service instance is created.
+	 *
+	 * @param min the lower bound of the timeout in ms
+	 * @param max the upper bound of the timeout in ms, also used until the
+	 * first round trip has been observed
+	 */
+	public static synchronized void setAdaptiveTimeout(long min, long max) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException("Invalid timeout bounds [" + min + ", " + max + "].");
+		}
+		adaptive = true;
+		minTimeout = min;
+		maxTimeout = max;
+	}
+
+	/**
+	 * Enables hedged requests: if the server does not respond within the
+	 * timeout, a request is published once more before the client forces a
+	 * local state change. The server needs to tolerate duplicate requests.
+	 *
+	 * @param enable whether to re-publish unanswered requests once
+	 */
+	public static synchronized void setHedging(boolean enable) {
+		hedging = enable;
+	}
+
+	public static synchronized boolean isHedging() {
+		return hedging;
+	}
+
+	public static String getPartition(String resource) {
+		String namespace = resource.split(NAMESPACE_SEPARATOR, 2)[0];
+		String partition = namespace.replaceAll("[^a-zA-Z0-9_-]", "_");
+		return partition.isEmpty() ? "_" : partition;
+	}
+
+	public static Scope getPartitionScope(String resource) {
+		return new Scope(getScope()).concat(new Scope("/" + getPartition(resource)));
+	}
+
 	private static RemoteAllocationService instance;
 	private final static Logger LOG = Logger.getLogger(RemoteAllocationService.class.getName());
 
 	private final Informer informer;
-	private final Listener listener;
+	private final Scope root;
+	private final Map<Scope, ScopeDispatcher> listeners = new HashMap<>();
+	private final AllocationCodec codec;
+	private final Queue<Publication> outgoing = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final long interval;
+	private final int size;
+	private final Thread sender;
+	private final Map<Scope, RttEstimator> estimators;
+	private final long min;
+	private final long max;
+	private volatile boolean active;
+
+	private class ScopeDispatcher extends AbstractEventHandler {
+
+		private final Listener listener;
+		private final List<Handler> handlers = new CopyOnWriteArrayList<>();
+		private final Map<Thread, Long> dispatching = new HashMap<>();
+		private long dispatches;
+
+		private ScopeDispatcher(Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void handleEvent(Event event) {
+			if (isSnapshotQuery(event)) {
+				codec.refresh(getSnapshotResources(event));
+			}
+			if (codec.decode(event)) {
+				Thread current = Thread.currentThread();
+				synchronized (this) {
+					this.dispatching.put(current, ++this.dispatches);
+				}
+				try {
+					for (Handler handler : this.handlers) {
+						handler.internalNotify(event);
+					}
+				} finally {
+					synchronized (this) {
+						this.dispatching.remove(current);
+						this.notifyAll();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Waits for all dispatches that started before to finish, except for
+		 * a dispatch on the calling thread, i.e. if called from a handler.
+		 *
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private synchronized void awaitDispatches() throws InterruptedException {
+			long started = this.dispatches;
+			while (isDispatching(started)) {
+				this.wait();
+			}
+		}
+
+		private boolean isDispatching(long started) {
+			for (Map.Entry<Thread, Long> dispatch : this.dispatching.entrySet()) {
+				if (dispatch.getKey() != Thread.currentThread() && dispatch.getValue() <= started) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Publication {
+
+		private final Event event;
+		private final CompletableFuture<Event> future = new CompletableFuture<>();
+
+		private Publication(Event event) {
+			this.event = event;
+		}
+	}
 
 	public static RemoteAllocationService getInstance() throws RSBException {
 		if (instance == null) {
@@ -72,40 +303,326 @@ public class RemoteAllocationService {
 	}
 
 	private RemoteAllocationService() throws RSBException {
-		this.informer = Factory.getInstance().createInformer(getScope());
-		this.listener = Factory.getInstance().createListener(getScope());
-		this.listener.addFilter(new OriginFilter(this.informer.getId(), true));
-		this.listener.activate();
+		this.root = new Scope(getScope());
+		this.informer = Factory.getInstance().createInformer(this.root);
 		this.informer.activate();
+		this.codec = new AllocationCodec(delta);
+		this.interval = flushInterval;
+		this.size = batchSize;
+		this.estimators = adaptive ? new HashMap<>() : null;
+		this.min = minTimeout;
+		this.max = maxTimeout;
+		this.active = true;
+		this.sender = new Thread(this::send, "allocation-sender@" + this.root);
+		this.sender.setDaemon(true);
+		this.sender.start();
+		if (!isPartitioned()) {
+			try {
+				getListener(this.root);
+			} catch (InterruptedException ex) {
+				LOG.log(Level.WARNING, "Interrupted during listener activation", ex);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void send() {
+		while (this.active || !this.outgoing.isEmpty()) {
+			int sent = 0;
+			Publication p;
+			while (sent < this.size && (p = this.outgoing.poll()) != null) {
+				this.queued.decrementAndGet();
+				try {
+					this.informer.publish(p.event);
+					p.future.complete(p.event);
+				} catch (RSBException | RuntimeException ex) {
+					LOG.log(Level.WARNING, "Could not publish resource allocation", ex);
+					p.future.completeExceptionally(ex);
+				}
+				sent++;
+			}
+			if (sent < this.size && this.active) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(this.interval > 0 ? this.interval : TIMEOUT));
+			}
+		}
+	}
+
+	private ScopeDispatcher getListener(Scope scope) throws RSBException, InterruptedException {
+		synchronized (this.listeners) {
+			ScopeDispatcher dispatcher = this.listeners.get(scope);
+			if (dispatcher == null) {
+				LOG.log(Level.FINE, "activating allocation listener at ''{0}''", scope);
+				Listener listener = Factory.getInstance().createListener(scope);
+				listener.addFilter(new OriginFilter(this.informer.getId(), true));
+				dispatcher = new ScopeDispatcher(listener);
+				listener.addHandler(dispatcher, true);
+				listener.activate();
+				this.listeners.put(scope, dispatcher);
+			}
+			return dispatcher;
+		}
+	}
+
+	private Scope getPublishScope(ResourceAllocation allocation) {
+		if (isPartitioned() && allocation.getResourceIdsCount() > 0) {
+			return getPartitionScope(allocation.getResourceIds(0));
+		} else {
+			return this.root;
+		}
+	}
+
+	/**
+	 * Queues the allocation for publishing. Requests are sent in order by a
+	 * single sender thread, so the caller does not block on the transport.
+	 *
+	 * @param allocation the allocation to publish
+	 * @return a future that completes with the published event
+	 * @throws RSBException if the service is already shut down
+	 */
+	public Future<Event> update(ResourceAllocation allocation) throws RSBException {
+		Event event = new Event(getPublishScope(allocation), ResourceAllocation.class, allocation);
+		return enqueue(event, false);
+	}
+
+	/**
+	 * Returns the time to wait for a server response to the given request.
+	 *
+	 * @param allocation the allocation request
+	 * @return the timeout in ms
+	 */
+	public long getTimeout(ResourceAllocation allocation) {
+		if (this.estimators == null) {
+			return TIMEOUT;
+		}
+		return getEstimator(getPublishScope(allocation)).getTimeout();
 	}
 
-	public void update(ResourceAllocation allocation) throws RSBException {
-		synchronized (this.informer) {
-			this.informer.publish(allocation);
+	/**
+	 * Records the round trip time of an answered request. Only requests that
+	 * were published exactly once should be sampled.
+	 *
+	 * @param allocation the allocation request
+	 * @param rtt the time in ms between publishing the request and receiving
+	 * the server response
+	 */
+	public void sample(ResourceAllocation allocation, double rtt) {
+		if (this.estimators != null) {
+			RttEstimator estimator = getEstimator(getPublishScope(allocation));
+			estimator.sample(rtt);
+			LOG.log(Level.FINER, "allocation round trip took {0}ms, timeout now {1}ms", new Object[]{rtt, estimator.getTimeout()});
 		}
 	}
 
+	private RttEstimator getEstimator(Scope scope) {
+		synchronized (this.estimators) {
+			return this.estimators.computeIfAbsent(scope, (s) -> new RttEstimator(this.min, this.max));
+		}
+	}
+
+	/**
+	 * Asks schedulers and caches to republish all live allocations involving
+	 * the given resources. Answers are delivered to the regular handlers.
+	 *
+	 * @param resources the resources of interest
+	 * @throws RSBException if the service is already shut down
+	 */
+	public void requestSnapshot(String... resources) throws RSBException {
+		Map<Scope, List<String>> queries = new HashMap<>();
+		for (String resource : resources) {
+			Scope s = isPartitioned() ? getPartitionScope(resource) : this.root;
+			queries.computeIfAbsent(s, (k) -> new ArrayList<>()).add(resource);
+		}
+		for (Map.Entry<Scope, List<String>> query : queries.entrySet()) {
+			Event event = new Event(query.getKey(), String.class, String.join(SNAPSHOT_SEPARATOR, query.getValue()));
+			event.setMethod(SNAPSHOT);
+			enqueue(event);
+		}
+	}
+
+	/**
+	 * Answers a snapshot query with the given allocations.
+	 *
+	 * @param query the snapshot query
+	 * @param allocations the live allocations matching the query
+	 * @throws RSBException if the service is already shut down
+	 */
+	public void replySnapshot(Event query, Collection<ResourceAllocation> allocations) throws RSBException {
+		replySnapshot(query, allocations, false);
+	}
+
+	/**
+	 * Answers a snapshot query with the given allocations.
+	 *
+	 * @param query the snapshot query
+	 * @param allocations the live allocations matching the query
+	 * @param cached whether the answer is given by a cache
+	 * @throws RSBException if the service is already shut down
+	 */
+	public void replySnapshot(Event query, Collection<ResourceAllocation> allocations, boolean cached) throws RSBException {
+		for (ResourceAllocation allocation : allocations) {
+			Event event = new Event(query.getScope(), ResourceAllocation.class, allocation);
+			event.setMethod(SNAPSHOT);
+			event.addCause(query.getId());
+			if (cached) {
+				event.getMetaData().setUserInfo(CACHED, Boolean.TRUE.toString());
+			}
+			enqueue(event, true);
+		}
+		Event end = new Event(query.getScope(), String.class, String.valueOf(allocations.size()));
+		end.setMethod(SNAPSHOT_END);
+		end.addCause(query.getId());
+		if (cached) {
+			end.getMetaData().setUserInfo(CACHED, Boolean.TRUE.toString());
+		}
+		enqueue(end);
+	}
+
+	public long getUndecodableCount() {
+		return this.codec.getUndecodableCount();
+	}
+
+	public static boolean isSnapshotQuery(Event event) {
+		return SNAPSHOT.equals(event.getMethod()) && event.getData() instanceof String;
+	}
+
+	public static boolean isSnapshotReply(Event event) {
+		return SNAPSHOT.equals(event.getMethod()) && event.getData() instanceof ResourceAllocation;
+	}
+
+	public static boolean isSnapshotEnd(Event event) {
+		return SNAPSHOT_END.equals(event.getMethod());
+	}
+
+	public static boolean isCachedReply(Event event) {
+		return (isSnapshotReply(event) || isSnapshotEnd(event)) && event.getMetaData().hasUserInfo(CACHED);
+	}
+
+	public static List<String> getSnapshotResources(Event query) {
+		return Arrays.asList(((String) query.getData()).split(SNAPSHOT_SEPARATOR));
+	}
+
+	/**
+	 * Encodes and queues an allocation event in one step, so that events are
+	 * published in the order of their versions.
+	 *
+	 * @param event the allocation event
+	 * @param full whether to send the full record in any case
+	 * @return a future that completes with the published event
+	 * @throws RSBException if the service is already shut down
+	 */
+	private Future<Event> enqueue(Event event, boolean full) throws RSBException {
+		synchronized (this.codec) {
+			this.codec.encode(event, full);
+			return enqueue(event);
+		}
+	}
+
+	private Future<Event> enqueue(Event event) throws RSBException {
+		if (!this.active) {
+			throw new RSBException("Allocation service is not active");
+		}
+		Publication p = new Publication(event);
+		this.outgoing.offer(p);
+		if (this.queued.incrementAndGet() >= this.size || this.interval <= 0) {
+			LockSupport.unpark(this.sender);
+		}
+		return p.future;
+	}
+
 	public void addHandler(Handler handler, boolean wait) throws InterruptedException, RSBException {
-		this.listener.addHandler(handler, wait);
+		getListener(this.root).handlers.add(handler);
+	}
+
+	/**
+	 * Adds a handler receiving the updates of the given allocation.
+	 *
+	 * @param handler the handler to add
+	 * @param wait ignored, handlers are installed before this method returns
+	 * @param allocation the allocation of interest
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws RSBException if the listener could not be activated
+	 */
+	public void addHandler(Handler handler, boolean wait, ResourceAllocation allocation) throws InterruptedException, RSBException {
+		getListener(getPublishScope(allocation)).handlers.add(handler);
+	}
+
+	/**
+	 * Adds a handler receiving all allocations that may involve the given
+	 * resources.
+	 *
+	 * @param handler the handler to add
+	 * @param wait ignored, handlers are installed before this method returns
+	 * @param resources the resources of interest
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws RSBException if the listener could not be activated
+	 */
+	public void addHandler(Handler handler, boolean wait, String... resources) throws InterruptedException, RSBException {
+		if (isPartitioned()) {
+			Set<Scope> scopes = new HashSet<>();
+			for (String resource : resources) {
+				scopes.add(getPartitionScope(resource));
+			}
+			for (Scope s : scopes) {
+				getListener(s).handlers.add(handler);
+			}
+		} else {
+			addHandler(handler, wait);
+		}
 	}
 
+	/**
+	 * Removes a handler from all scopes.
+	 *
+	 * @param handler the handler to remove
+	 * @param wait whether to wait for running notifications of the handler,
+	 * so that it is not called anymore once this method returns
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws RSBException declared for compatibility
+	 */
 	public void removeHandler(Handler handler, boolean wait) throws InterruptedException, RSBException {
-		this.listener.removeHandler(handler, wait);
+		for (ScopeDispatcher dispatcher : getListeners()) {
+			if (dispatcher.handlers.remove(handler) && wait) {
+				dispatcher.awaitDispatches();
+			}
+		}
+	}
+
+	private List<ScopeDispatcher> getListeners() {
+		synchronized (this.listeners) {
+			return new ArrayList<>(this.listeners.values());
+		}
+	}
+
+	private boolean hasHandlers() {
+		for (ScopeDispatcher dispatcher : getListeners()) {
+			if (!dispatcher.handlers.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public void shutdown() throws RSBException, InterruptedException {
-		for (int i = 0; i < 100 && !this.listener.getHandlers().isEmpty(); i++) {
+		for (int i = 0; i < 100 && hasHandlers(); i++) {
 			Thread.sleep(10);
 		}
-		if (!this.listener.getHandlers().isEmpty()) {
+		if (hasHandlers()) {
 			LOG.log(Level.WARNING, "Shutting down although there may still be active listener threads");
 		}
 		shutdownNow();
 	}
 
 	public void shutdownNow() throws RSBException, InterruptedException {
+		this.active = false;
+		LockSupport.unpark(this.sender);
+		this.sender.join(TIMEOUT);
 		this.informer.deactivate();
-		this.listener.deactivate();
+		for (ScopeDispatcher dispatcher : getListeners()) {
+			dispatcher.listener.deactivate();
+		}
+		synchronized (this.listeners) {
+			this.listeners.clear();
+		}
 		instance = null;
 	}
 
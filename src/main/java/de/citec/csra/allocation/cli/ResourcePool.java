@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import de.citec.csra.rst.util.IntervalUtils;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.RSBException;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ABORTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.CANCELLED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REJECTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+import rst.timing.IntervalType.Interval;
+
+/**
+ * Holds a single long allocation of a set of resources at the server and
+ * hands out short local allocations of these resources within the process.
+ * Local allocations behave like remote ones but are scheduled by the pool
+ * without any server communication: they are granted one at a time in order
+ * of their priority and, for equal priority, their arrival. A local slot
+ * starts when it is granted and lasts as long as the most recently requested
+ * interval. The server lease is requested when the first local allocation is
+ * scheduled, kept alive while there is work and released after the pool has
+ * been idle for a while. Updates of local allocations are delivered
+ * asynchronously, but always in the order in which the pool decided them.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ResourcePool {
+
+	private final static Logger LOG = Logger.getLogger(ResourcePool.class.getName());
+	public final static long LEASE = 10000;
+	public final static long IDLE = 5000;
+	private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "resource-pool-timer");
+		t.setDaemon(true);
+		return t;
+	});
+	private final static ExecutorService DELIVERY = Executors.newCachedThreadPool((r) -> {
+		Thread t = new Thread(r, "resource-pool-delivery");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final ResourceAllocation template;
+	private final long lease;
+	private final long idle;
+	private final PriorityQueue<LocalAllocation> queue = new PriorityQueue<>();
+	private final Queue<Runnable> deliveries = new ArrayDeque<>();
+	private boolean delivering;
+	private RemoteAllocation remote;
+	private LeaseRenewer.Lease renewal;
+	private LocalAllocation current;
+	private ScheduledFuture<?> expiry;
+	private ScheduledFuture<?> release;
+	private long sequence;
+
+	public ResourcePool(String description, Policy policy, Priority priority, Initiator initiator, String... resources) {
+		this(description, policy, priority, initiator, LEASE, IDLE, resources);
+	}
+
+	/**
+	 * Creates a resource pool.
+	 *
+	 * @param description the description of the server lease
+	 * @param policy the policy of the server lease
+	 * @param priority the priority of the server lease
+	 * @param initiator the initiator of the server lease
+	 * @param lease the duration in ms by which the server lease is requested
+	 * and extended
+	 * @param idle the time in ms after which an unused server lease is released
+	 * @param resources the pooled resources
+	 */
+	public ResourcePool(String description, Policy policy, Priority priority, Initiator initiator, long lease, long idle, String... resources) {
+		this.template = ResourceAllocation.newBuilder()
+				.setDescription(description)
+				.setPolicy(policy)
+				.setPriority(priority)
+				.setInitiator(initiator)
+				.addAllResourceIds(Arrays.asList(resources))
+				.buildPartial();
+		this.lease = lease;
+		this.idle = idle;
+	}
+
+	/**
+	 * Creates a local allocation of the pooled resources. The allocation is
+	 * handled by the pool once it is scheduled.
+	 *
+	 * @param description the description of the local allocation
+	 * @param priority the local priority
+	 * @param duration the duration of the local slot in ms
+	 * @return the local allocation
+	 */
+	public RemoteAllocation allocate(String description, Priority priority, long duration) {
+		return new LocalAllocation(ResourceAllocation.newBuilder(this.template)
+				.setDescription(description)
+				.setPriority(priority)
+				.setSlot(IntervalUtils.buildRelativeRst(0, duration)));
+	}
+
+	public synchronized State getLeaseState() {
+		return this.remote == null ? RELEASED : this.remote.getCurrentState();
+	}
+
+	public synchronized int getQueueLength() {
+		return this.queue.size();
+	}
+
+	private class LocalAllocation extends RemoteAllocation implements Comparable<LocalAllocation> {
+
+		private long duration;
+		private Interval slot;
+		private long order;
+		private boolean scheduled;
+
+		private LocalAllocation(ResourceAllocation.Builder builder) {
+			super(builder);
+			Interval slot = builder.getSlot();
+			this.duration = slot.getEnd().getTime() - slot.getBegin().getTime();
+			this.slot = slot;
+		}
+
+		@Override
+		public void schedule() throws RSBException {
+			synchronized (this) {
+				this.scheduled = true;
+			}
+			submit(this);
+		}
+
+		@Override
+		public synchronized boolean isScheduled() {
+			return this.scheduled;
+		}
+
+		@Override
+		protected void requestState(State newState) throws RSBException {
+			switch (newState) {
+				case ABORTED:
+				case CANCELLED:
+				case RELEASED:
+					finish(this, newState);
+					break;
+				default:
+					LOG.log(Level.WARNING, "Illegal state ({0}), skipping local update", newState);
+					break;
+			}
+		}
+
+		@Override
+		protected void requestSlot(Interval interval) throws RSBException {
+			adjust(this, interval);
+		}
+
+		@Override
+		public int compareTo(LocalAllocation other) {
+			int c = Integer.compare(other.getPriority().ordinal(), getPriority().ordinal());
+			return c != 0 ? c : Long.compare(this.order, other.order);
+		}
+
+		private Priority getPriority() {
+			return getAllocation().getPriority();
+		}
+
+		private ResourceAllocation update(State state, Interval slot) {
+			return ResourceAllocation.newBuilder(getAllocation()).setState(state).setSlot(slot).build();
+		}
+	}
+
+	private synchronized void submit(LocalAllocation local) {
+		local.order = this.sequence++;
+		this.queue.add(local);
+		if (this.release != null) {
+			this.release.cancel(false);
+			this.release = null;
+		}
+		deliver(local, SCHEDULED, local.slot);
+		if (this.remote == null || !this.remote.isAlive()) {
+			requestLease();
+		}
+		dispatch();
+	}
+
+	/**
+	 * Queues an update of a local allocation for delivery. Has to be called
+	 * while holding the pool lock, so that updates are delivered in the order
+	 * in which they were decided.
+	 */
+	private void deliver(LocalAllocation local, State state, Interval slot) {
+		local.slot = slot;
+		ResourceAllocation update = local.update(state, slot);
+		this.deliveries.add(() -> local.allocationUpdated(update));
+		if (!this.delivering) {
+			this.delivering = true;
+			DELIVERY.execute(this::drain);
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Runnable delivery;
+			synchronized (this) {
+				delivery = this.deliveries.poll();
+				if (delivery == null) {
+					this.delivering = false;
+					return;
+				}
+			}
+			try {
+				delivery.run();
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Could not deliver local allocation update", ex);
+			}
+		}
+	}
+
+	RemoteAllocation createLease(ResourceAllocation.Builder builder) {
+		return new RemoteAllocation(builder);
+	}
+
+	private void requestLease() {
+		RemoteAllocation requested = createLease(ResourceAllocation.newBuilder(this.template)
+				.setSlot(IntervalUtils.buildRelativeRst(0, this.lease)));
+		requested.addSchedulerListener((allocation) -> leaseUpdated(requested, allocation));
+		this.remote = requested;
+		this.renewal = requested.keepAlive(this.lease / 2, this.lease);
+		LOG.log(Level.FINE, "requesting server lease ''{0}''", requested);
+		TIMER.execute(() -> {
+			try {
+				requested.schedule();
+			} catch (RSBException ex) {
+				LOG.log(Level.WARNING, "Could not request server lease", ex);
+			}
+		});
+	}
+
+	private void dispatch() {
+		if (this.current != null || this.remote == null || this.remote.getCurrentState() != ALLOCATED) {
+			return;
+		}
+		LocalAllocation next = this.queue.poll();
+		if (next == null) {
+			scheduleRelease();
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Interval slot = IntervalUtils.buildRst(now, now + next.duration);
+		this.current = next;
+		this.expiry = TIMER.schedule(() -> expire(next), next.duration, TimeUnit.MILLISECONDS);
+		LOG.log(Level.FINE, "granting local allocation ''{0}''", next);
+		deliver(next, ALLOCATED, slot);
+	}
+
+	private void scheduleRelease() {
+		if (this.release == null) {
+			this.release = TIMER.schedule(this::releaseIfIdle, this.idle, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void releaseIfIdle() {
+		RemoteAllocation idleLease;
+		synchronized (this) {
+			this.release = null;
+			if (this.current != null || !this.queue.isEmpty() || this.remote == null) {
+				return;
+			}
+			idleLease = this.remote;
+			this.remote = null;
+			this.renewal.cancel();
+		}
+		LOG.log(Level.FINE, "releasing idle server lease ''{0}''", idleLease);
+		try {
+			switch (idleLease.getCurrentState()) {
+				case ALLOCATED:
+					idleLease.release();
+					break;
+				default:
+					idleLease.cancel();
+					break;
+			}
+		} catch (RSBException ex) {
+			LOG.log(Level.WARNING, "Could not release server lease", ex);
+		}
+	}
+
+	private void expire(LocalAllocation local) {
+		try {
+			finish(local, RELEASED);
+		} catch (RSBException ex) {
+			LOG.log(Level.WARNING, "Could not expire local allocation", ex);
+		}
+	}
+
+	private synchronized void finish(LocalAllocation local, State state) throws RSBException {
+		if (this.current == local) {
+			this.current = null;
+			this.expiry.cancel(false);
+		} else if (!this.queue.remove(local)) {
+			return;
+		}
+		deliver(local, state, local.slot);
+		dispatch();
+	}
+
+	private synchronized void adjust(LocalAllocation local, Interval interval) throws RSBException {
+		if (this.current == local) {
+			this.expiry.cancel(false);
+			long remaining = interval.getEnd().getTime() - System.currentTimeMillis();
+			this.expiry = TIMER.schedule(() -> expire(local), remaining, TimeUnit.MILLISECONDS);
+			deliver(local, ALLOCATED, interval);
+		} else if (this.queue.contains(local)) {
+			local.duration = interval.getEnd().getTime() - interval.getBegin().getTime();
+			deliver(local, SCHEDULED, interval);
+		}
+	}
+
+	private synchronized void leaseUpdated(RemoteAllocation lease, ResourceAllocation allocation) {
+		if (this.remote != lease) {
+			return;
+		}
+		switch (allocation.getState()) {
+			case ALLOCATED:
+				dispatch();
+				break;
+			case REJECTED:
+			case CANCELLED:
+			case ABORTED:
+			case RELEASED:
+				LOG.log(Level.WARNING, "server lease ended ({0}), shutting down local allocations", allocation.getState());
+				this.renewal.cancel();
+				this.remote = null;
+				if (this.current != null) {
+					deliver(this.current, ABORTED, this.current.slot);
+					this.current = null;
+					this.expiry.cancel(false);
+				}
+				State state = allocation.getState() == REJECTED ? REJECTED : CANCELLED;
+				LocalAllocation queued;
+				while ((queued = this.queue.poll()) != null) {
+					deliver(queued, state, queued.slot);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+}
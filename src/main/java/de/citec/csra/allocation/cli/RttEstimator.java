@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+/**
+ * Estimates the round trip time of allocation requests and derives a request
+ * timeout from it, following the retransmission timer of TCP (RFC 6298): the
+ * timeout is the smoothed round trip time plus four times its smoothed
+ * deviation, bounded by the given minimum and maximum. Until the first sample
+ * arrives, the maximum is used.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class RttEstimator {
+
+	private final static double ALPHA = 0.125;
+	private final static double BETA = 0.25;
+	private final static int K = 4;
+
+	private final long min;
+	private final long max;
+	private double srtt = -1;
+	private double rttvar;
+	private long samples;
+
+	public RttEstimator(long min, long max) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException("Invalid timeout bounds [" + min + ", " + max + "].");
+		}
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Adds a round trip time measurement.
+	 *
+	 * @param rtt the measured round trip time in ms
+	 */
+	public synchronized void sample(double rtt) {
+		if (this.srtt < 0) {
+			this.srtt = rtt;
+			this.rttvar = rtt / 2;
+		} else {
+			this.rttvar = (1 - BETA) * this.rttvar + BETA * Math.abs(this.srtt - rtt);
+			this.srtt = (1 - ALPHA) * this.srtt + ALPHA * rtt;
+		}
+		this.samples++;
+	}
+
+	public synchronized long getTimeout() {
+		if (this.srtt < 0) {
+			return this.max;
+		}
+		long rto = (long) Math.ceil(this.srtt + K * this.rttvar);
+		return Math.max(this.min, Math.min(this.max, rto));
+	}
+
+	public synchronized double getSmoothedRtt() {
+		return this.srtt;
+	}
+
+	public synchronized double getRttVariation() {
+		return this.rttvar;
+	}
+
+	public synchronized long getSampleCount() {
+		return this.samples;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task;
+
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import de.citec.csra.rst.util.SerializationService;
+import static de.citec.csra.rst.util.SerializationService.EMPTY;
+import static de.citec.csra.rst.util.SerializationService.UTF8;
+import io.airlift.compress.Compressor;
+import io.airlift.compress.Decompressor;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdCompressor;
+import io.airlift.compress.zstd.ZstdDecompressor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.InitializeException;
+import rst.communicationpatterns.TaskStateType.TaskState;
+
+/**
+ * Serializes task payloads and optionally compresses them. Compressed payloads
+ * are marked by a suffix of the wire schema, e.g. {@code utf-8-string+lz4}, and
+ * are prefixed with their uncompressed length. Compressed payloads that
+ * announce more than the maximum payload size of ${TASK_PAYLOAD_MAXIMUM} bytes
+ * or do not match their announced length are refused.
+ * <p>
+ * Raw payloads bypass serialization and compression. Sending them is opt-in
+ * by passing a {@link ByteBuffer}, other payloads including byte arrays keep
+ * using the regular serialization. Raw payloads are sent with wire schema
+ * {@code bytes}, which only peers using this codec can decode. They are
+ * wrapped without copying and decoded into a read-only byte buffer viewing the
+ * received data, so the caller must not modify them after publishing. Large
+ * files can be sent this way by means of {@link #map(Path)}.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class PayloadCodec {
+
+	public enum Compression {
+		NONE,
+		LZ4,
+		ZSTD
+	}
+
+	private final static Logger LOG = Logger.getLogger(PayloadCodec.class.getName());
+	private final static String COMPRESSIONVAR = "TASK_PAYLOAD_COMPRESSION";
+	private final static String THRESHOLDVAR = "TASK_PAYLOAD_THRESHOLD";
+	private final static String MAXIMUMVAR = "TASK_PAYLOAD_MAXIMUM";
+	private final static int THRESHOLD = 4096;
+	private final static int MAXIMUM = 64 * 1024 * 1024;
+	private final static String SEPARATOR = "+";
+	private final static int HEADER = 4;
+	private final static ByteString RAW = ByteString.copyFromUtf8("bytes");
+
+	private final Compression compression;
+	private final int threshold;
+	private final int maximum;
+	private SerializationService serializer;
+	private Class<?> type;
+	private SerializationService deserializer;
+	private String schema;
+
+	public PayloadCodec() {
+		this(getDefaultCompression(), getDefaultThreshold());
+	}
+
+	public PayloadCodec(Compression compression, int threshold) {
+		this(compression, threshold, getDefaultMaximum());
+	}
+
+	/**
+	 * Creates a codec with the given compression settings.
+	 *
+	 * @param compression the compression of outgoing payloads
+	 * @param threshold the minimal payload size in bytes to compress
+	 * @param maximum the maximal uncompressed size in bytes of incoming
+	 * compressed payloads
+	 */
+	public PayloadCodec(Compression compression, int threshold, int maximum) {
+		if (maximum < 0) {
+			throw new IllegalArgumentException("Maximum payload size must not be negative.");
+		}
+		this.compression = compression;
+		this.threshold = threshold;
+		this.maximum = maximum;
+	}
+
+	public static Compression getDefaultCompression() {
+		String value = System.getenv(COMPRESSIONVAR);
+		if (value == null) {
+			return Compression.NONE;
+		}
+		try {
+			return Compression.valueOf(value.toUpperCase());
+		} catch (IllegalArgumentException ex) {
+			LOG.log(Level.WARNING, "Unknown payload compression ''{0}'' in ${1}, disabling compression", new Object[]{value, COMPRESSIONVAR});
+			return Compression.NONE;
+		}
+	}
+
+	public static int getDefaultThreshold() {
+		String value = System.getenv(THRESHOLDVAR);
+		if (value == null) {
+			return THRESHOLD;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			LOG.log(Level.WARNING, "Invalid payload threshold ''{0}'' in ${1}, using {2}", new Object[]{value, THRESHOLDVAR, THRESHOLD});
+			return THRESHOLD;
+		}
+	}
+
+	public static int getDefaultMaximum() {
+		String value = System.getenv(MAXIMUMVAR);
+		if (value == null) {
+			return MAXIMUM;
+		}
+		int maximum;
+		try {
+			maximum = Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			maximum = -1;
+		}
+		if (maximum < 0) {
+			LOG.log(Level.WARNING, "Invalid maximum payload size ''{0}'' in ${1}, using {2}", new Object[]{value, MAXIMUMVAR, MAXIMUM});
+			return MAXIMUM;
+		}
+		return maximum;
+	}
+
+	public Compression getCompression() {
+		return this.compression;
+	}
+
+	public int getThreshold() {
+		return this.threshold;
+	}
+
+	public int getMaximum() {
+		return this.maximum;
+	}
+
+	public void encode(Object payload, TaskState.Builder task) {
+		ByteString pl;
+		ByteString ws;
+		if (payload == null) {
+			pl = EMPTY;
+			ws = UTF8;
+		} else if (payload instanceof ByteBuffer) {
+			task.setPayload(UnsafeByteOperations.unsafeWrap((ByteBuffer) payload)).setWireSchema(RAW);
+			return;
+		} else {
+			try {
+				if (this.serializer == null || !payload.getClass().equals(this.type)) {
+					this.serializer = new SerializationService<>(payload.getClass());
+					this.type = payload.getClass();
+				}
+				pl = this.serializer.serialize(payload);
+				ws = this.serializer.getSchema();
+			} catch (InitializeException ex) {
+				LOG.log(Level.SEVERE, null, ex);
+				pl = EMPTY;
+				ws = UTF8;
+			}
+		}
+		if (this.compression != Compression.NONE && pl.size() >= this.threshold) {
+			ByteString compressed = compress(pl, this.compression);
+			if (compressed.size() < pl.size()) {
+				LOG.log(Level.FINE, "compressed payload from {0} to {1} bytes ({2})", new Object[]{pl.size(), compressed.size(), this.compression});
+				pl = compressed;
+				ws = ByteString.copyFromUtf8(ws.toStringUtf8() + SEPARATOR + this.compression.name().toLowerCase());
+			}
+		}
+		task.setPayload(pl).setWireSchema(ws);
+	}
+
+	/**
+	 * Decodes a payload according to its wire schema.
+	 *
+	 * @param payload the payload
+	 * @param wireSchema the wire schema
+	 * @return the decoded payload
+	 * @throws IllegalArgumentException if the payload cannot be decoded
+	 */
+	public Object decode(ByteString payload, ByteString wireSchema) throws IllegalArgumentException {
+		if (wireSchema.equals(RAW)) {
+			return payload.asReadOnlyByteBuffer();
+		}
+		String ws = wireSchema.toStringUtf8();
+		for (Compression c : Compression.values()) {
+			String suffix = SEPARATOR + c.name().toLowerCase();
+			if (c != Compression.NONE && ws.endsWith(suffix)) {
+				ws = ws.substring(0, ws.length() - suffix.length());
+				payload = decompress(payload, c);
+				break;
+			}
+		}
+		if (this.deserializer == null || !ws.equals(this.schema)) {
+			this.deserializer = new SerializationService(ws);
+			this.schema = ws;
+		}
+		return this.deserializer.deserialize(payload);
+	}
+
+	private static ByteString compress(ByteString data, Compression compression) {
+		Compressor compressor = compression == Compression.LZ4 ? new Lz4Compressor() : new ZstdCompressor();
+		byte[] input = data.toByteArray();
+		byte[] output = new byte[HEADER + compressor.maxCompressedLength(input.length)];
+		ByteBuffer.wrap(output).putInt(input.length);
+		int length = compressor.compress(input, 0, input.length, output, HEADER, output.length - HEADER);
+		return UnsafeByteOperations.unsafeWrap(output, 0, HEADER + length);
+	}
+
+	private ByteString decompress(ByteString data, Compression compression) {
+		ByteBuffer input = data.asReadOnlyByteBuffer();
+		if (input.remaining() < HEADER) {
+			throw new IllegalArgumentException("Compressed payload of " + data.size() + " bytes lacks length header.");
+		}
+		int size = input.getInt();
+		if (size < 0 || size > this.maximum) {
+			throw new IllegalArgumentException("Announced payload size of " + size + " bytes exceeds maximum of " + this.maximum + " bytes.");
+		}
+		if (!input.isDirect()) {
+//			decompressors only accept heap buffers with accessible array
+			input = wrap(data);
+			input.position(input.position() + HEADER);
+		}
+		Decompressor decompressor = compression == Compression.LZ4 ? new Lz4Decompressor() : new ZstdDecompressor();
+		ByteBuffer output = ByteBuffer.allocate(size);
+		try {
+			decompressor.decompress(input, output);
+		} catch (RuntimeException ex) {
+			throw new IllegalArgumentException("Malformed compressed payload.", ex);
+		}
+		if (output.position() != size) {
+			throw new IllegalArgumentException("Decompressed payload has " + output.position() + " instead of announced " + size + " bytes.");
+		}
+		return UnsafeByteOperations.unsafeWrap(output.array());
+	}
+
+	/**
+	 * Returns a buffer backed by the data of the given byte string, which is
+	 * only copied if it is not contiguous.
+	 */
+	private static ByteBuffer wrap(ByteString data) {
+		ByteBuffer[] chunk = new ByteBuffer[1];
+		try {
+			UnsafeByteOperations.unsafeWriteTo(data, new ByteOutput() {
+				@Override
+				public void write(byte value) {
+					throw new IllegalStateException();
+				}
+
+				@Override
+				public void write(byte[] value, int offset, int length) {
+					writeLazy(value, offset, length);
+				}
+
+				@Override
+				public void writeLazy(byte[] value, int offset, int length) {
+					if (chunk[0] != null) {
+						throw new IllegalStateException();
+					}
+					chunk[0] = ByteBuffer.wrap(value, offset, length);
+				}
+
+				@Override
+				public void write(ByteBuffer value) {
+					writeLazy(value);
+				}
+
+				@Override
+				public void writeLazy(ByteBuffer value) {
+					if (chunk[0] != null || !value.hasArray()) {
+						throw new IllegalStateException();
+					}
+					chunk[0] = value.duplicate();
+				}
+			});
+		} catch (IOException | IllegalStateException ex) {
+			chunk[0] = null;
+		}
+		return chunk[0] != null ? chunk[0] : ByteBuffer.wrap(data.toByteArray());
+	}
+
+	/**
+	 * Maps a file into memory so that it can be published as raw payload
+	 * without reading it onto the heap.
+	 *
+	 * @param file the file to map
+	 * @return a read-only buffer covering the whole file
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public static ByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+}
@@ -16,16 +16,17 @@
  */
 package de.citec.csra.task;
 
-import com.google.protobuf.ByteString;
 import de.citec.csra.task.cli.TaskListener;
-import de.citec.csra.rst.util.SerializationService;
-import static de.citec.csra.rst.util.SerializationService.EMPTY;
-import static de.citec.csra.rst.util.SerializationService.UTF8;
+import de.citec.csra.util.ListenerMailbox;
+import de.citec.csra.util.UpdatePublisher;
 import static de.citec.csra.rst.util.StringRepresentation.shortString;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rsb.Event;
@@ -53,8 +54,45 @@ import rst.communicationpatterns.TaskStateType.TaskState.State;
  */
 public class TaskProxy {
 
+	/**
+	 * User info of the initiating event holding the deadline of the task in
+	 * milliseconds since the epoch.
+	 */
+	public final static String DEADLINE = "deadline";
+	/**
+	 * User info of the initiating event holding the priority of the task.
+	 */
+	public final static String PRIORITY = "priority";
+	/**
+	 * User info of the initiating event holding the key by which repeated
+	 * submissions of the same task are recognized.
+	 */
+	public final static String DEDUPLICATION_KEY = "dedup-key";
+	/**
+	 * User info of the initiating event holding a graph of tasks to execute.
+	 */
+	public final static String GRAPH = "task-graph";
+	/**
+	 * User info of the initiating event requesting progress updates for each
+	 * node of a task graph.
+	 */
+	public final static String GRAPH_PROGRESS = "task-graph-progress";
+
+	private static boolean registered;
+
 	static {
-		DefaultConverterRepository.getDefaultConverterRepository().addConverter(new ProtocolBufferConverter<>(TaskState.getDefaultInstance()));
+		registerConverter();
+	}
+
+	/**
+	 * Registers the task state converter with the default converter repository
+	 * unless this already happened.
+	 */
+	public static synchronized void registerConverter() {
+		if (!registered) {
+			DefaultConverterRepository.getDefaultConverterRepository().addConverter(new ProtocolBufferConverter<>(TaskState.getDefaultInstance()));
+			registered = true;
+		}
 	}
 
 	private final static Logger LOG = Logger.getLogger(TaskProxy.class.getName());
@@ -63,11 +101,14 @@ public class TaskProxy {
 	private BlockingQueue<TaskState> queue;
 	private boolean active;
 	private final TaskState.Builder task;
-	private final Set<TaskListener> listeners = new HashSet<>();
+	private final Map<TaskListener, Consumer<TaskState>> listeners = new ConcurrentHashMap<>();
+	private final UpdatePublisher<TaskState> publisher = new UpdatePublisher<>();
 	private EventId causeId;
 	private final Scope scope;
-	private SerializationService sservice;
+	private PayloadCodec codec = new PayloadCodec();
 	private final boolean foreignInformer;
+	private final Map<String, String> userInfos = new ConcurrentHashMap<>();
+	private final Map<String, String> causeInfos = new HashMap<>();
 
 	public TaskProxy(String scope) throws InitializeException {
 		this.causeId = null;
@@ -85,6 +126,7 @@ public class TaskProxy {
 		this.listener = Factory.getInstance().createListener(cause.getScope());
 		this.foreignInformer = false;
 		this.task = TaskState.newBuilder(original).setOrigin(HANDLER);
+		copyUserInfos(cause);
 	}
 
 	public TaskProxy(TaskState original, Event cause, Informer informer) throws InitializeException {
@@ -94,14 +136,54 @@ public class TaskProxy {
 		this.listener = Factory.getInstance().createListener(cause.getScope());
 		this.foreignInformer = true;
 		this.task = TaskState.newBuilder(original).setOrigin(HANDLER);
+		copyUserInfos(cause);
+	}
+
+	private void copyUserInfos(Event cause) {
+		for (String key : cause.getMetaData().getUserInfoKeys()) {
+			this.causeInfos.put(key, cause.getMetaData().getUserInfo(key));
+		}
+	}
+
+	/**
+	 * Sets a meta data entry that is attached to all task updates sent by this
+	 * proxy from now on.
+	 *
+	 * @param key the user info key
+	 * @param value the user info value
+	 */
+	public void setUserInfo(String key, String value) {
+		this.userInfos.put(key, value);
+	}
+
+	/**
+	 * Returns a meta data entry of the event that initiated the task, if this
+	 * proxy was created on behalf of a handler.
+	 *
+	 * @param key the user info key
+	 * @return the user info value or null
+	 */
+	public String getUserInfo(String key) {
+		return this.causeInfos.get(key);
 	}
 
 	public void activate() throws RSBException, InterruptedException {
 		activate(false);
 	}
 
+	/**
+	 * Activates the proxy to receive task updates. Does nothing if the proxy
+	 * is already active.
+	 *
+	 * @param compat whether to receive updates unrelated to the task as well
+	 * @throws RSBException if the listener or informer cannot be activated
+	 * @throws InterruptedException if interrupted during activation
+	 */
 	public void activate(boolean compat) throws RSBException, InterruptedException {
 		synchronized (this.listener) {
+			if (this.active) {
+				return;
+			}
 			QueueAdapter<TaskState> qa = new QueueAdapter<>();
 			this.queue = qa.getQueue();
 			if (compat) {
@@ -132,9 +214,10 @@ public class TaskProxy {
 						if (update != null) {
 							LOG.log(Level.INFO, "RECEIVED task update at ''{0}'' with ''{1}''", new String[]{this.scope.toString(), shortString(update)});
 							this.task.mergeFrom(update);
-							this.listeners.forEach((ts) -> {
-								ts.updated(update);
+							this.listeners.values().forEach((ts) -> {
+								ts.accept(update);
 							});
+							this.publisher.accept(update);
 							checkState();
 						}
 					} catch (InterruptedException e) {
@@ -165,10 +248,33 @@ public class TaskProxy {
 			}
 			this.active = false;
 		}
+		this.publisher.complete();
 	}
 
 	public void addTaskListener(TaskListener l) {
-		this.listeners.add(l);
+		this.listeners.put(l, l::updated);
+	}
+
+	/**
+	 * Adds a listener that is notified asynchronously using the given executor.
+	 * Each listener receives its updates in order through a bounded mailbox, so
+	 * slow listeners do not delay the dispatcher or other listeners.
+	 *
+	 * @param l the listener to add
+	 * @param executor the executor used for delivery
+	 */
+	public void addTaskListener(TaskListener l, Executor executor) {
+		this.listeners.put(l, new ListenerMailbox<>(l::updated, executor));
+	}
+
+	/**
+	 * Returns a reactive streams publisher of all received task updates, which
+	 * completes when the proxy is deactivated.
+	 *
+	 * @return the update publisher
+	 */
+	public UpdatePublisher<TaskState> getPublisher() {
+		return this.publisher;
 	}
 
 	public void removeTaskListener(TaskListener l) {
@@ -203,6 +309,9 @@ public class TaskProxy {
 			if (this.causeId != null) {
 				e.addCause(this.causeId);
 			}
+			for (Map.Entry<String, String> info : this.userInfos.entrySet()) {
+				e.getMetaData().setUserInfo(info.getKey(), info.getValue());
+			}
 			synchronized (this.listener) {
 				this.informer.publish(e);
 				if (this.causeId == null) {
@@ -214,23 +323,29 @@ public class TaskProxy {
 		}
 	}
 
-	public void update(Object payload) {
+	/**
+	 * Sends a new payload. Updates are serialized, so that concurrent updates
+	 * do not mix their states and payloads.
+	 *
+	 * @param payload the new payload
+	 */
+	public synchronized void update(Object payload) {
 		setPayload(payload);
 		publish();
 	}
 
-	public void update(State state) {
+	public synchronized void update(State state) {
 		setState(state);
 		publish();
 	}
 
-	public void update(State state, Object payload) {
+	public synchronized void update(State state, Object payload) {
 		setState(state);
 		setPayload(payload);
 		publish();
 	}
 
-	public void udpate(TaskState task) {
+	public synchronized void udpate(TaskState task) {
 		this.task.mergeFrom(task);
 		publish();
 	}
@@ -241,31 +356,23 @@ public class TaskProxy {
 	}
 
 	private void setPayload(Object payload) {
-		ByteString pl;
-		ByteString ws;
-		if (payload == null) {
-			pl = EMPTY;
-			ws = UTF8;
-		} else {
-			try {
-				if (sservice == null || !payload.getClass().equals(sservice.getClass())) {
-					sservice = new SerializationService<>(payload.getClass());
-				}
-				pl = sservice.serialize(payload);
-				ws = sservice.getSchema();
-			} catch (InitializeException ex) {
-				Logger.getLogger(TaskProxy.class.getName()).log(Level.SEVERE, null, ex);
-				pl = EMPTY;
-				ws = UTF8;
-			}
-		}
-		this.task.setPayload(pl).setWireSchema(ws);
+		this.codec.encode(payload, this.task);
 	}
 
 	public Object getPayload() {
-		if (sservice == null || !this.task.getPayload().getClass().equals(sservice.getClass())) {
-			sservice = new SerializationService(this.task.getWireSchema().toStringUtf8());
-		}
-		return sservice.deserialize(this.task.getPayload());
+		return this.codec.decode(this.task.getPayload(), this.task.getWireSchema());
+	}
+
+	/**
+	 * Configures compression of outgoing payloads. By default, the compression
+	 * is taken from ${TASK_PAYLOAD_COMPRESSION} and applies to payloads of at
+	 * least ${TASK_PAYLOAD_THRESHOLD} bytes. Incoming payloads are decompressed
+	 * transparently regardless of this setting.
+	 *
+	 * @param compression the compression codec
+	 * @param threshold the minimal payload size in bytes to compress
+	 */
+	public void setCompression(PayloadCodec.Compression compression, int threshold) {
+		this.codec = new PayloadCodec(compression, threshold);
 	}
 }
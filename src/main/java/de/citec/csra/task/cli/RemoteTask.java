@@ -50,6 +50,7 @@ public class RemoteTask<T> implements Callable, TaskListener {
 	private final Object monitor = new Object();
 	private State state = INITIATED;
 	private final boolean compat;
+	private long deadline = Long.MAX_VALUE;
 
 	public RemoteTask(String scope, T payload) throws InitializeException {
 		this(scope, payload, DEFAULT_TIMEOUT, DEFAULT_COMPAT);
@@ -71,6 +72,52 @@ public class RemoteTask<T> implements Callable, TaskListener {
 		this.compat = compat;
 	}
 
+	/**
+	 * Sets the key by which the server recognizes repeated submissions of this
+	 * task, e.g. retries after a timeout. Without a key, servers with enabled
+	 * deduplication compare the payload.
+	 *
+	 * @param key the deduplication key
+	 */
+	public void setDeduplicationKey(String key) {
+		this.proxy.setUserInfo(TaskProxy.DEDUPLICATION_KEY, key);
+	}
+
+	/**
+	 * Sets a deadline after which the result is of no use anymore. The server
+	 * rejects the task if it starts after the deadline and aborts it if it is
+	 * still running at the deadline. Locally, waiting for the result ends with
+	 * a timeout at the deadline.
+	 *
+	 * @param deadline the deadline in milliseconds since the epoch
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+		this.proxy.setUserInfo(TaskProxy.DEADLINE, String.valueOf(deadline));
+	}
+
+	/**
+	 * Sets the priority of this task. Servers with prioritized queues execute
+	 * tasks with higher priority first.
+	 *
+	 * @param priority the task priority
+	 */
+	public void setPriority(int priority) {
+		this.proxy.setUserInfo(TaskProxy.PRIORITY, String.valueOf(priority));
+	}
+
+	/**
+	 * Submits this task as a graph of tasks to be executed by the server, see
+	 * {@link de.citec.csra.task.srv.TaskGraphHandler}.
+	 *
+	 * @param graph the graph specification
+	 * @param progress whether to report completion of each node
+	 */
+	public void setGraph(String graph, boolean progress) {
+		this.proxy.setUserInfo(TaskProxy.GRAPH, graph);
+		this.proxy.setUserInfo(TaskProxy.GRAPH_PROGRESS, String.valueOf(progress));
+	}
+
 	private void activate() throws RSBException, InterruptedException {
 		synchronized (this.monitor) {
 			this.proxy.addTaskListener(this);
@@ -91,20 +138,37 @@ public class RemoteTask<T> implements Callable, TaskListener {
 
 		try {
 
+			State current;
 			synchronized (this.monitor) {
-				this.monitor.wait(accept);
+				long timeout = System.currentTimeMillis() + this.accept;
+				long remaining = this.accept;
+				while (this.state == INITIATED && remaining > 0) {
+					this.monitor.wait(remaining);
+					remaining = timeout - System.currentTimeMillis();
+				}
+				current = this.state;
 			}
 
-			switch (state) {
+			switch (current) {
 				case ACCEPTED:
 					while (true) {
 						synchronized (this.monitor) {
-							this.monitor.wait();
-							switch (state) {
+							switch (this.state) {
 //								still computing:
 								case ABORT_FAILED:
 								case ACCEPTED:
 								case RESULT_AVAILABLE:
+									if (this.deadline == Long.MAX_VALUE) {
+										this.monitor.wait();
+									} else {
+										long remaining = this.deadline - System.currentTimeMillis();
+										if (remaining <= 0) {
+											this.proxy.update(ABORT);
+											deactivate();
+											throw new TimeoutException("Task at '" + scope + "' exceeded its deadline.");
+										}
+										this.monitor.wait(remaining);
+									}
 									break;
 //								success:
 								case COMPLETED:
@@ -129,14 +193,15 @@ public class RemoteTask<T> implements Callable, TaskListener {
 					LOG.log(Level.FINE, "Christmas came early: Task at ''{0}'' completed without accepting first.", scope);
 					return proxy.getPayload();
 				case REJECTED:
-					throw new RuntimeException("Task at '" + scope + "' could not be executed (" + state + "): " + proxy.getPayload());
+					throw new RuntimeException("Task at '" + scope + "' could not be executed (" + current + "): " + proxy.getPayload());
 				case INITIATED:
+					this.proxy.update(ABORT);
 					deactivate();
 					throw new TimeoutException("Task at '" + scope + "' timed out.");
 				default:
 					this.proxy.update(ABORT);
 					deactivate();
-					throw new IllegalArgumentException("Received illegal task state '" + state + "' at '" + scope + "', aborting and shutting down.");
+					throw new IllegalArgumentException("Received illegal task state '" + current + "' at '" + scope + "', aborting and shutting down.");
 			}
 		} catch (InterruptedException ex) {
 			deactivate();
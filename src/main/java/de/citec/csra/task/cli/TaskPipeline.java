@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.cli;
+
+import de.citec.csra.task.PayloadCodec;
+import de.citec.csra.task.TaskProxy;
+import static de.citec.csra.rst.util.StringRepresentation.shortString;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.EventId;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rsb.filter.OriginFilter;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import static rst.communicationpatterns.TaskStateType.TaskState.Origin.HANDLER;
+import static rst.communicationpatterns.TaskStateType.TaskState.Origin.SUBMITTER;
+import rst.communicationpatterns.TaskStateType.TaskState.State;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORT;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.INITIATED;
+
+/**
+ * Submits tasks without waiting for their acceptance. Each submission returns
+ * immediately with futures for acceptance and result, so that any number of
+ * tasks can be in flight at the same time. Task updates are correlated with
+ * their submission by the id of the initiating event. All tasks at one scope
+ * share a single informer and listener.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskPipeline {
+
+	private final static Logger LOG = Logger.getLogger(TaskPipeline.class.getName());
+	private final static long DEFAULT_TIMEOUT = 1000;
+	private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "task-pipeline-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static {
+		TaskProxy.registerConverter();
+	}
+
+	private final long accept;
+	private final Map<String, Channel> channels = new HashMap<>();
+	private final Map<EventId, Submission> pending = new ConcurrentHashMap<>();
+	private final PayloadCodec encoder = new PayloadCodec();
+	private boolean closed;
+
+	public TaskPipeline() {
+		this(DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Creates a pipeline whose tasks fail if they are not accepted in time.
+	 *
+	 * @param accept the accept timeout in milliseconds
+	 */
+	public TaskPipeline(long accept) {
+		this.accept = accept;
+	}
+
+	/**
+	 * A submitted task.
+	 */
+	public class Submission {
+
+		private final Channel channel;
+		private final TaskState.Builder task;
+		private final CompletableFuture<State> acceptance = new CompletableFuture<>();
+		private final CompletableFuture<Object> result = new CompletableFuture<>();
+		private final PayloadCodec decoder = new PayloadCodec();
+		private EventId id;
+		private ScheduledFuture<?> timeout;
+
+		private Submission(Channel channel, TaskState.Builder task) {
+			this.channel = channel;
+			this.task = task;
+		}
+
+		/**
+		 * Returns a future that completes with the first state reported by
+		 * the handler, i.e. ACCEPTED or COMPLETED, or fails if the task was
+		 * rejected or not accepted in time.
+		 *
+		 * @return the acceptance future
+		 */
+		public CompletableFuture<State> getAcceptance() {
+			return this.acceptance;
+		}
+
+		/**
+		 * Returns a future that completes with the result payload of the task
+		 * or fails if the task did not complete.
+		 *
+		 * @return the result future
+		 */
+		public CompletableFuture<Object> getResult() {
+			return this.result;
+		}
+
+		/**
+		 * Asks the handler to abort the task.
+		 *
+		 * @throws RSBException if the abort request cannot be sent
+		 */
+		public void abort() throws RSBException {
+			if (this.result.isDone()) {
+				return;
+			}
+			send(ABORT);
+		}
+
+		private void send(State state) throws RSBException {
+			TaskState update;
+			synchronized (this) {
+				update = this.task.setState(state).setSerial(this.task.getSerial() + 1).build();
+			}
+			Event e = new Event(this.channel.scope, TaskState.class, update);
+			if (this.id != null) {
+				e.addCause(this.id);
+			}
+			LOG.log(Level.FINE, "SENDING task update to ''{0}'' with ''{1}''", new String[]{e.getScope().toString(), shortString(update)});
+			this.channel.informer.publish(e);
+			if (this.id == null) {
+				this.id = e.getId();
+			}
+		}
+
+		private void updated(TaskState update) {
+			State state = update.getState();
+			switch (state) {
+				case ACCEPTED:
+					this.timeout.cancel(false);
+					this.acceptance.complete(state);
+					break;
+				case COMPLETED:
+					this.timeout.cancel(false);
+					finish();
+					this.acceptance.complete(state);
+					this.result.complete(decode(update));
+					break;
+				case REJECTED:
+					this.timeout.cancel(false);
+					finish();
+					RuntimeException rejected = new RuntimeException("Task at '" + this.channel.scope + "' could not be executed (" + state + "): " + decode(update));
+					this.acceptance.completeExceptionally(rejected);
+					this.result.completeExceptionally(rejected);
+					break;
+				case ABORTED:
+				case FAILED:
+				case UPDATE_REJECTED:
+					this.timeout.cancel(false);
+					finish();
+					this.acceptance.complete(state);
+					this.result.completeExceptionally(new RuntimeException("Task at '" + this.channel.scope + "' ended abnormally (" + state + "): " + decode(update)));
+					break;
+				default:
+					break;
+			}
+		}
+
+		private Object decode(TaskState update) {
+			synchronized (this.decoder) {
+				return this.decoder.decode(update.getPayload(), update.getWireSchema());
+			}
+		}
+
+		private void expire() {
+			if (this.acceptance.isDone()) {
+				return;
+			}
+			LOG.log(Level.FINE, "Task at ''{0}'' not accepted within {1}ms, aborting.", new Object[]{this.channel.scope, accept});
+			try {
+				send(ABORT);
+			} catch (RSBException ex) {
+				LOG.log(Level.WARNING, "Could not abort timed out task", ex);
+			}
+			finish();
+			TimeoutException timedOut = new TimeoutException("Task at '" + this.channel.scope + "' timed out.");
+			this.acceptance.completeExceptionally(timedOut);
+			this.result.completeExceptionally(timedOut);
+		}
+
+		private void finish() {
+			if (this.id != null) {
+				pending.remove(this.id);
+			}
+		}
+	}
+
+	private class Channel extends AbstractEventHandler {
+
+		private final Scope scope;
+		private final Informer informer;
+		private final Listener listener;
+
+		private Channel(String scope) throws RSBException, InterruptedException {
+			this.scope = new Scope(scope);
+			this.informer = Factory.getInstance().createInformer(scope);
+			this.listener = Factory.getInstance().createListener(scope);
+			this.listener.addFilter(new OriginFilter(this.informer.getId(), true));
+			this.listener.addHandler(this, true);
+			this.informer.activate();
+			this.listener.activate();
+		}
+
+		@Override
+		public void handleEvent(Event e) {
+			if (!(e.getData() instanceof TaskState) || !((TaskState) e.getData()).getOrigin().equals(HANDLER)) {
+				return;
+			}
+			for (EventId cause : e.getCauses()) {
+				Submission submission;
+				synchronized (pending) {
+					submission = pending.get(cause);
+				}
+				if (submission != null) {
+					LOG.log(Level.FINE, "RECEIVED task update at ''{0}'' with ''{1}''", new String[]{this.scope.toString(), shortString(e.getData())});
+					submission.updated((TaskState) e.getData());
+				}
+			}
+		}
+
+		private void deactivate() throws RSBException, InterruptedException {
+			this.listener.deactivate();
+			this.informer.deactivate();
+		}
+	}
+
+	/**
+	 * Publishes a new task and returns without waiting for a reply.
+	 *
+	 * @param scope the task scope
+	 * @param payload the task payload
+	 * @return the submitted task
+	 * @throws RSBException if the task cannot be published
+	 * @throws InterruptedException if interrupted while setting up
+	 * communication
+	 */
+	public Submission submit(String scope, Object payload) throws RSBException, InterruptedException {
+		Channel channel;
+		synchronized (this.channels) {
+			if (this.closed) {
+				throw new IllegalStateException("Pipeline already closed.");
+			}
+			channel = this.channels.get(scope);
+			if (channel == null) {
+				channel = new Channel(scope);
+				this.channels.put(scope, channel);
+			}
+		}
+		TaskState.Builder task = TaskState.newBuilder().setOrigin(SUBMITTER).setSerial(-1);
+		synchronized (this.encoder) {
+			this.encoder.encode(payload, task);
+		}
+		Submission submission = new Submission(channel, task);
+		synchronized (this.pending) {
+			submission.send(INITIATED);
+			this.pending.put(submission.id, submission);
+			submission.timeout = TIMER.schedule(submission::expire, this.accept, TimeUnit.MILLISECONDS);
+		}
+		return submission;
+	}
+
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Shuts down communication. Tasks still in flight fail.
+	 *
+	 * @throws RSBException if communication cannot be shut down
+	 * @throws InterruptedException if interrupted during shutdown
+	 */
+	public void close() throws RSBException, InterruptedException {
+		List<Channel> active;
+		synchronized (this.channels) {
+			this.closed = true;
+			active = new ArrayList<>(this.channels.values());
+			this.channels.clear();
+		}
+		for (Submission submission : this.pending.values()) {
+			submission.timeout.cancel(false);
+			IllegalStateException closing = new IllegalStateException("Pipeline closed.");
+			submission.acceptance.completeExceptionally(closing);
+			submission.result.completeExceptionally(closing);
+		}
+		this.pending.clear();
+		for (Channel channel : active) {
+			channel.deactivate();
+		}
+	}
+}
@@ -19,6 +19,12 @@ package de.citec.csra.task.srv;
 import de.citec.csra.task.TaskProxy;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import rsb.Event;
 import rsb.Informer;
 import rsb.RSBException;
@@ -31,7 +37,14 @@ import rst.communicationpatterns.TaskStateType.TaskState;
  */
 public abstract class AbstractTaskHandler implements TaskHandler, LocalTaskFactory {
 
+	private final static Logger LOG = Logger.getLogger(AbstractTaskHandler.class.getName());
+	public final static long AGING = 1000;
+
 	private final ExecutorService service;
+	private final long aging;
+	private final AtomicLong sequence = new AtomicLong();
+	private TaskDeduplicator deduplicator;
+	private long fastPath;
 
 	public AbstractTaskHandler() {
 		this(Executors.newCachedThreadPool());
@@ -39,16 +52,127 @@ public abstract class AbstractTaskHandler implements TaskHandler, LocalTaskFacto
 
 	public AbstractTaskHandler(ExecutorService service) {
 		this.service = service;
+		this.aging = -1;
+	}
+
+	public AbstractTaskHandler(int threads) {
+		this(threads, AGING);
+	}
+
+	/**
+	 * Creates a handler that executes tasks on a fixed number of threads,
+	 * pending tasks are ordered by priority. The priority is taken from the
+	 * {@link TaskProxy#PRIORITY} user info of the initiating event or, if
+	 * absent and {@link #hasPriority()} holds, determined from the payload by
+	 * {@link #getPriority(Object)}. To avoid starvation, waiting tasks age: one
+	 * priority level is worth the given aging interval of waiting time.
+	 *
+	 * @param threads the number of worker threads
+	 * @param aging the waiting time in milliseconds per priority level
+	 */
+	public AbstractTaskHandler(int threads, long aging) {
+		this.service = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		this.aging = aging;
+	}
+
+	/**
+	 * Enables deduplication of identical tasks, see {@link TaskDeduplicator}.
+	 *
+	 * @param deduplicator the deduplicator to use or null to disable
+	 */
+	public void setDeduplicator(TaskDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	/**
+	 * Enables the fast path for tasks that finish within the given budget, see
+	 * {@link TaskExecutionMonitor#setFastPath(long)}.
+	 *
+	 * @param budget the fast path budget in milliseconds, 0 to disable
+	 */
+	public void setFastPath(long budget) {
+		this.fastPath = budget;
 	}
 
 	@Override
 	public void handle(TaskState t, Event e, Informer i) throws RSBException, InterruptedException {
 		TaskProxy proxy = new TaskProxy(t, e, i);
+		TaskDeduplicator dedup = this.deduplicator;
+		String key = dedup != null ? dedup.getKey(t, e) : null;
+		if (key != null && dedup.attach(key, proxy)) {
+			return;
+		}
+		submit(proxy, dedup, key);
+	}
+
+	private void submit(TaskProxy proxy, TaskDeduplicator dedup, String key) {
 		TaskExecutionMonitor monitor = new TaskExecutionMonitor(proxy, this);
-		this.service.submit(monitor);
+		monitor.setFastPath(this.fastPath);
+		if (key != null) {
+			monitor.setCompletionHandler((state, result) -> {
+				TaskProxy next = dedup.complete(key, state, result);
+				if (next != null) {
+					submit(next, dedup, key);
+				}
+			});
+		}
+		if (this.aging < 0) {
+			this.service.submit(monitor);
+		} else {
+			int priority = getPriority(proxy, monitor);
+			try {
+				monitor.awaitExecution();
+			} catch (RSBException ex) {
+				LOG.log(Level.WARNING, "Unable to activate task proxy, queued task cannot be aborted.", ex);
+			} catch (InterruptedException ex) {
+				LOG.log(Level.WARNING, "Interrupted during task proxy activation, queued task cannot be aborted.", ex);
+				Thread.currentThread().interrupt();
+			}
+			this.service.execute(new PrioritizedTask(monitor, System.currentTimeMillis() - priority * this.aging, this.sequence.getAndIncrement()));
+		}
+	}
+
+	private int getPriority(TaskProxy proxy, TaskExecutionMonitor monitor) {
+		String value = proxy.getUserInfo(TaskProxy.PRIORITY);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value);
+			} catch (NumberFormatException ex) {
+				LOG.log(Level.WARNING, "Ignoring invalid task priority ''{0}''", value);
+			}
+		}
+		if (!hasPriority()) {
+			return 0;
+		}
+		Object description = proxy.getPayload();
+		monitor.setDescription(description);
+		return getPriority(description);
 	}
 
 	@Override
 	public abstract LocalTask newLocalTask(Object description) throws IllegalArgumentException;
 
+	private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+		private final TaskExecutionMonitor monitor;
+		private final long rank;
+		private final long sequence;
+
+		private PrioritizedTask(TaskExecutionMonitor monitor, long rank, long sequence) {
+			this.monitor = monitor;
+			this.rank = rank;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			this.monitor.call();
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask other) {
+			int c = Long.compare(this.rank, other.rank);
+			return c != 0 ? c : Long.compare(this.sequence, other.sequence);
+		}
+	}
 }
@@ -6,11 +6,18 @@
 package de.citec.csra.task.srv;
 
 import de.citec.csra.allocation.cli.ExecutableResource;
+import de.citec.csra.allocation.cli.GangAllocation;
+import de.citec.csra.allocation.cli.RemoteAllocation;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rsb.RSBException;
@@ -22,23 +29,42 @@ import rsb.RSBException;
 public class ExecutableResourceTask implements LocalTask {
 
 	private final static Logger LOG = Logger.getLogger(ExecutableResourceTask.class.getName());
+	private final static long TIMEOUT = 500;
 	private final Set<ExecutableResource> actions;
-	private final long TIMEOUT = 500;
+	private final long timeout;
+	private boolean failFast;
 
 	public ExecutableResourceTask(Set<ExecutableResource> actions) throws InterruptedException, IllegalArgumentException, RuntimeException {
+		this(actions, false);
+	}
+
+	public ExecutableResourceTask(Set<ExecutableResource> actions, boolean scheduleImmediately) throws InterruptedException, IllegalArgumentException, RuntimeException {
+		this(actions, scheduleImmediately, TIMEOUT);
+	}
+
+	public ExecutableResourceTask(Set<ExecutableResource> actions, boolean scheduleImmediately, long timeout) throws InterruptedException, IllegalArgumentException, RuntimeException {
 		this.actions = actions;
+		this.timeout = timeout;
 		if (this.actions.isEmpty()) {
 			throw new IllegalArgumentException("No actions found.");
 		}
-	}
-
-	public ExecutableResourceTask(Set<ExecutableResource> actions, boolean scheduleImmediately) throws InterruptedException, IllegalArgumentException, RuntimeException {
-		this(actions);
 		if (scheduleImmediately) {
 			schedule(this.actions);
 		}
 	}
 
+	/**
+	 * Enables fail-fast execution. The first action that fails or cannot be
+	 * executed shuts down all other actions, releasing their allocations, and
+	 * the task fails right away. The task completes as soon as the user code of
+	 * all actions returned, without waiting for their allocations to end.
+	 *
+	 * @param failFast whether to fail fast
+	 */
+	public void setFailFast(boolean failFast) {
+		this.failFast = failFast;
+	}
+
 	@Override
 	public void abort(Object description) throws Exception {
 		for (ExecutableResource er : this.actions) {
@@ -54,47 +80,71 @@ public class ExecutableResourceTask implements LocalTask {
 			er.startup();
 			fs.put(er.getFuture(), er);
 		}
+		if (this.failFast) {
+			awaitOutcomes();
+			return null;
+		}
 		for (Future f : fs.keySet()) {
 			f.get();
 		}
 		return null;
 	}
 
-	private void schedule(Set<ExecutableResource> actions) throws InterruptedException, IllegalArgumentException, RuntimeException {
-		final Object monitor = new Object();
-		Set<ExecutableResource> pending = new HashSet<>(actions);
-		for (ExecutableResource r : actions) {
-			r.getRemote().addSchedulerListener((a) -> {
-				synchronized (monitor) {
-					switch (a.getState()) {
-						case REJECTED:
-							throw new IllegalArgumentException("Resource unavailable");
-						case SCHEDULED:
-							pending.remove(r);
-							monitor.notifyAll();
-							break;
-					}
+	private void awaitOutcomes() throws ExecutionException, InterruptedException {
+		CompletableFuture<?>[] outcomes = new CompletableFuture<?>[this.actions.size()];
+		CompletableFuture<Void> failure = new CompletableFuture<>();
+		int i = 0;
+		for (ExecutableResource er : this.actions) {
+			outcomes[i++] = er.getOutcome().whenComplete((r, ex) -> {
+				if (ex != null) {
+					failure.complete(null);
 				}
 			});
-			try {
-				r.getRemote().schedule();
-			} catch (RSBException ex) {
-				throw new RuntimeException(ex);
+		}
+		CompletableFuture.anyOf(CompletableFuture.allOf(outcomes).handle((r, ex) -> null), failure).get();
+		for (ExecutableResource er : this.actions) {
+			if (er.getOutcome().isCompletedExceptionally()) {
+				LOG.log(Level.WARNING, "Action ''{0}'' failed, shutting down remaining actions", er);
+				for (ExecutableResource sibling : this.actions) {
+					if (!sibling.getOutcome().isDone()) {
+						try {
+							sibling.shutdown();
+						} catch (RSBException ex) {
+							LOG.log(Level.WARNING, "Could not shut down action ''{0}''", sibling);
+						}
+					}
+				}
+				try {
+					er.getOutcome().join();
+				} catch (CompletionException ex) {
+					throw new ExecutionException(ex.getCause());
+				} catch (CancellationException ex) {
+					throw new ExecutionException(ex);
+				}
 			}
 		}
+	}
 
-		long start = System.currentTimeMillis();
-		long remaining = TIMEOUT;
-		while (remaining > 0) {
-			synchronized (monitor) {
-				if (pending.isEmpty()) {
+	private void schedule(Set<ExecutableResource> actions) throws InterruptedException, IllegalArgumentException, RuntimeException {
+		Set<RemoteAllocation> remotes = new HashSet<>();
+		for (ExecutableResource r : actions) {
+			remotes.add(r.getRemote());
+		}
+		GangAllocation gang = new GangAllocation(remotes);
+		try {
+			gang.schedule();
+		} catch (RSBException ex) {
+			throw new RuntimeException(ex);
+		}
+		try {
+			switch (gang.await(this.timeout)) {
+				case SCHEDULED:
 					return;
-				} else {
-					remaining = TIMEOUT - (System.currentTimeMillis() - start);
-					monitor.wait(remaining);
-				}
+				default:
+					throw new IllegalArgumentException("Resource unavailable");
 			}
+		} catch (TimeoutException ex) {
+			throw new IllegalArgumentException("Allocation service unreachable in given time.", ex);
 		}
-		throw new IllegalArgumentException("Allocation service unreachable in given time.");
 	}
 }
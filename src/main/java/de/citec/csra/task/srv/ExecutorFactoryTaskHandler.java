@@ -28,8 +28,23 @@ public class ExecutorFactoryTaskHandler extends AbstractTaskHandler {
 		this.builder = builder;
 	}
 
+	public ExecutorFactoryTaskHandler(LocalTaskFactory builder, int threads) {
+		super(threads);
+		this.builder = builder;
+	}
+
 	@Override
 	public LocalTask newLocalTask(Object description) throws IllegalArgumentException {
 		return this.builder.newLocalTask(description);
 	}
+
+	@Override
+	public int getPriority(Object description) {
+		return this.builder.getPriority(description);
+	}
+
+	@Override
+	public boolean hasPriority() {
+		return this.builder.hasPriority();
+	}
 }
@@ -23,4 +23,27 @@ package de.citec.csra.task.srv;
 public interface LocalTaskFactory {
 
 	public LocalTask newLocalTask(Object description) throws IllegalArgumentException;
+
+	/**
+	 * Determines the priority of a task if the submitter did not specify one.
+	 * Tasks with higher priority are executed first by handlers with a
+	 * prioritized queue. Only called if {@link #hasPriority()} returns true.
+	 *
+	 * @param description the task description
+	 * @return the task priority
+	 */
+	public default int getPriority(Object description) {
+		return 0;
+	}
+
+	/**
+	 * Returns whether this factory determines priorities from the task
+	 * description. Factories overriding {@link #getPriority(Object)} have to
+	 * return true, otherwise the description is not decoded for ordering.
+	 *
+	 * @return true if {@link #getPriority(Object)} is to be consulted
+	 */
+	public default boolean hasPriority() {
+		return false;
+	}
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Task factory that hands out a fixed set of reusable task instances, which
+ * are all created up front. Each instance is reset with the description of
+ * the new task before execution and returned to the pool afterwards. If all
+ * instances are busy, the task is created without an instance and waits for
+ * one when it is executed, so that task handlers are not blocked before they
+ * accept a task. In this case, an unsupported description makes the task fail
+ * instead of being rejected. The pool size should match the concurrency of
+ * the handler, e.g. {@code new ExecutorFactoryTaskHandler(pool, pool.getSize())}.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class PooledTaskFactory implements LocalTaskFactory {
+
+	private final static Logger LOG = Logger.getLogger(PooledTaskFactory.class.getName());
+
+	private final BlockingQueue<ReusableLocalTask> pool;
+	private final int size;
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+
+	public PooledTaskFactory(Supplier<ReusableLocalTask> supplier, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be positive.");
+		}
+		this.size = size;
+		this.pool = new ArrayBlockingQueue<>(size);
+		for (int i = 0; i < size; i++) {
+			this.pool.add(supplier.get());
+		}
+		LOG.log(Level.FINE, "Created {0} pooled task instances", size);
+	}
+
+	@Override
+	public LocalTask newLocalTask(Object description) throws IllegalArgumentException {
+		ReusableLocalTask task = this.pool.poll();
+		if (task != null) {
+			try {
+				task.reset(description);
+			} catch (RuntimeException ex) {
+				this.pool.add(task);
+				throw ex;
+			}
+		}
+		return new PooledTask(task, description);
+	}
+
+	private ReusableLocalTask take() throws InterruptedException {
+		ReusableLocalTask task = this.pool.poll();
+		if (task == null) {
+			long start = System.nanoTime();
+			task = this.pool.take();
+			long waited = System.nanoTime() - start;
+			this.waits.incrementAndGet();
+			this.waitTime.addAndGet(waited);
+			LOG.log(Level.FINE, "Waited {0}ms for a pooled task instance", waited / 1000000);
+		}
+		return task;
+	}
+
+	public int getSize() {
+		return this.size;
+	}
+
+	public int getAvailable() {
+		return this.pool.size();
+	}
+
+	/**
+	 * Returns how many tasks had to wait for an instance to become available.
+	 *
+	 * @return the number of waits
+	 */
+	public long getWaitCount() {
+		return this.waits.get();
+	}
+
+	/**
+	 * Returns the accumulated time tasks waited for an instance.
+	 *
+	 * @return the total waiting time in nanoseconds
+	 */
+	public long getWaitTime() {
+		return this.waitTime.get();
+	}
+
+	/**
+	 * Lease of a pooled instance for a single task. State changes and the
+	 * delegation of an abort happen under the lock of the lease, so an abort
+	 * can never reach an instance that has already been returned to the pool.
+	 */
+	private class PooledTask implements LocalTask {
+
+		private final static int IDLE = 0;
+		private final static int RUNNING = 1;
+		private final static int RETURNED = 2;
+
+		private final Object description;
+		private ReusableLocalTask task;
+		private int state = IDLE;
+
+		private PooledTask(ReusableLocalTask task, Object description) {
+			this.task = task;
+			this.description = description;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			ReusableLocalTask instance;
+			synchronized (this) {
+				instance = this.task;
+			}
+			if (instance == null) {
+				instance = take();
+				try {
+					instance.reset(this.description);
+				} catch (RuntimeException ex) {
+					pool.add(instance);
+					throw ex;
+				}
+			}
+			synchronized (this) {
+				if (this.state != IDLE) {
+					if (this.task == null) {
+						pool.add(instance);
+					}
+					throw new CancellationException("Task aborted before execution.");
+				}
+				this.task = instance;
+				this.state = RUNNING;
+			}
+			try {
+				return instance.call();
+			} finally {
+				synchronized (this) {
+					this.state = RETURNED;
+					pool.add(instance);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void abort(Object description) throws Exception {
+			if (this.state == IDLE) {
+				this.state = RETURNED;
+				if (this.task != null) {
+					pool.add(this.task);
+				}
+			} else if (this.state == RUNNING) {
+				this.task.abort(description);
+			}
+		}
+	}
+}
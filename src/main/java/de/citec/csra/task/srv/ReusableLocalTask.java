@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+/**
+ * Local task that can execute several tasks one after another, e.g. to keep
+ * expensive resources loaded across tasks.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public interface ReusableLocalTask extends LocalTask {
+
+	/**
+	 * Prepares this instance for the execution of a new task.
+	 *
+	 * @param description the description of the next task
+	 * @throws IllegalArgumentException if the description is not supported
+	 */
+	public void reset(Object description) throws IllegalArgumentException;
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import de.citec.csra.task.cli.TaskListener;
+import de.citec.csra.task.TaskProxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.Event;
+import rsb.RSBException;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import rst.communicationpatterns.TaskStateType.TaskState.State;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORT;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
+
+/**
+ * Suppresses repeated execution of identical tasks. Tasks are identified by
+ * the key given in the {@link TaskProxy#DEDUPLICATION_KEY} user info of the
+ * initiating event. Identifying tasks without key by a hash of scope, wire
+ * schema and payload must be enabled explicitly with
+ * {@link #setContentHashing(boolean)}.
+ * <p>
+ * A duplicate of a task that is still running is accepted and receives the
+ * result of the running execution. Its client may abort it at any time
+ * without affecting the execution. If the running execution is aborted by its
+ * own client, the task is executed again on behalf of the remaining
+ * duplicates. Completed results are cached and served to later duplicates
+ * only for tasks with an explicit key, so that repeating a task without key
+ * always executes it again.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskDeduplicator {
+
+	private final static Logger LOG = Logger.getLogger(TaskDeduplicator.class.getName());
+	private final static String HASH = "sha-256:";
+	public final static long TTL = 10000;
+	public final static int CAPACITY = 256;
+
+	private final long ttl;
+	private final Map<String, Execution> running = new HashMap<>();
+	private final Map<String, Result> results;
+	private volatile boolean hashing;
+	private long hits;
+
+	public TaskDeduplicator() {
+		this(TTL, CAPACITY);
+	}
+
+	public TaskDeduplicator(long ttl, int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative.");
+		}
+		this.ttl = ttl;
+		this.results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Enables deduplication of tasks without explicit key by a hash of scope,
+	 * wire schema and payload. Such tasks are only attached to running
+	 * executions, their results are never cached.
+	 *
+	 * @param hashing whether to deduplicate tasks without key
+	 */
+	public void setContentHashing(boolean hashing) {
+		this.hashing = hashing;
+	}
+
+	/**
+	 * Returns the key that identifies a task.
+	 *
+	 * @param task the task
+	 * @param cause the initiating event
+	 * @return the key or null if the task is not to be deduplicated
+	 */
+	public String getKey(TaskState task, Event cause) {
+		if (cause.getMetaData().hasUserInfo(TaskProxy.DEDUPLICATION_KEY)) {
+			return cause.getMetaData().getUserInfo(TaskProxy.DEDUPLICATION_KEY);
+		}
+		if (!this.hashing) {
+			return null;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(cause.getScope().toString().getBytes(StandardCharsets.UTF_8));
+			digest.update(task.getWireSchema().asReadOnlyByteBuffer());
+			digest.update(task.getPayload().asReadOnlyByteBuffer());
+			return HASH + Base64.getEncoder().encodeToString(digest.digest());
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not supported by this platform.", ex);
+		}
+	}
+
+	/**
+	 * Attaches a task to a running or recently completed execution with the
+	 * same key. If there is none, the key is marked as running and the caller
+	 * is responsible for executing the task and calling
+	 * {@link #complete(String, State, Object)} afterwards. Attached tasks are
+	 * activated so that their clients can abort them.
+	 *
+	 * @param key the task key
+	 * @param proxy the proxy of the new task
+	 * @return true if the task was attached as duplicate, false if it needs to
+	 * be executed
+	 * @throws RSBException if the proxy of a duplicate cannot be activated
+	 * @throws InterruptedException if interrupted during activation
+	 */
+	public boolean attach(String key, TaskProxy proxy) throws RSBException, InterruptedException {
+		Result cached;
+		Duplicate duplicate = null;
+		synchronized (this) {
+			cached = this.results.get(key);
+			if (cached != null && cached.expiry < System.currentTimeMillis()) {
+				this.results.remove(key);
+				cached = null;
+			}
+			if (cached == null) {
+				Execution execution = this.running.get(key);
+				if (execution == null) {
+					this.running.put(key, new Execution(proxy.getUserInfo(TaskProxy.DEDUPLICATION_KEY) != null));
+					return false;
+				}
+				duplicate = new Duplicate(key, proxy);
+				execution.duplicates.add(duplicate);
+			}
+			this.hits++;
+		}
+		LOG.log(Level.FINE, "Task ''{0}'' is a duplicate, serving {1} result", new Object[]{key, cached != null ? "cached" : "running"});
+		if (duplicate != null) {
+			try {
+				duplicate.activate();
+			} catch (RSBException | InterruptedException ex) {
+				detach(duplicate);
+				throw ex;
+			}
+		} else {
+			proxy.update(ACCEPTED);
+			proxy.update(COMPLETED, cached.value);
+		}
+		return true;
+	}
+
+	/**
+	 * Publishes the outcome of an execution to all attached duplicates and
+	 * caches it if the task completed successfully and has an explicit key.
+	 * If the execution was aborted while duplicates are still attached, it is
+	 * not passed on. Instead, the first duplicate is returned and needs to be
+	 * executed by the caller, the remaining duplicates stay attached to it.
+	 *
+	 * @param key the task key
+	 * @param state the final task state
+	 * @param result the result or error description
+	 * @return the task to execute on behalf of the remaining duplicates or null
+	 */
+	public TaskProxy complete(String key, State state, Object result) {
+		List<Duplicate> attached;
+		Duplicate next = null;
+		synchronized (this) {
+			Execution execution = this.running.get(key);
+			if (execution == null) {
+				return null;
+			}
+			if (state == ABORTED && !execution.duplicates.isEmpty()) {
+				next = execution.duplicates.remove(0);
+				attached = new ArrayList<>();
+			} else {
+				this.running.remove(key);
+				attached = execution.duplicates;
+				if (state == COMPLETED && this.ttl > 0 && execution.cacheable) {
+					this.results.put(key, new Result(result, System.currentTimeMillis() + this.ttl));
+				}
+			}
+		}
+		if (next != null) {
+			LOG.log(Level.FINE, "Execution of task ''{0}'' aborted, executing again for duplicates", key);
+			next.promote();
+			return next.proxy;
+		}
+		for (Duplicate duplicate : attached) {
+			duplicate.finish(state, result);
+		}
+		return null;
+	}
+
+	private synchronized boolean detach(Duplicate duplicate) {
+		Execution execution = this.running.get(duplicate.key);
+		return execution != null && execution.duplicates.remove(duplicate);
+	}
+
+	public synchronized long getHitCount() {
+		return this.hits;
+	}
+
+	private static class Execution {
+
+		private final boolean cacheable;
+		private final List<Duplicate> duplicates = new ArrayList<>();
+
+		private Execution(boolean cacheable) {
+			this.cacheable = cacheable;
+		}
+	}
+
+	private class Duplicate implements TaskListener {
+
+		private final String key;
+		private final TaskProxy proxy;
+		private boolean detached;
+
+		private Duplicate(String key, TaskProxy proxy) {
+			this.key = key;
+			this.proxy = proxy;
+		}
+
+		private synchronized void activate() throws RSBException, InterruptedException {
+			if (this.detached) {
+				return;
+			}
+			this.proxy.addTaskListener(this);
+			this.proxy.activate();
+			this.proxy.update(ACCEPTED);
+		}
+
+		private synchronized void promote() {
+			this.detached = true;
+			this.proxy.removeTaskListener(this);
+		}
+
+		private synchronized void finish(State state, Object result) {
+			this.detached = true;
+			this.proxy.removeTaskListener(this);
+//			update also implies deactivation
+			this.proxy.update(state, result);
+		}
+
+		@Override
+		public void updated(TaskState task) {
+			if (task.getState() == ABORT && detach(this)) {
+				LOG.log(Level.FINE, "Duplicate of task ''{0}'' aborted by client", this.key);
+				finish(ABORTED, null);
+			}
+		}
+	}
+
+	private static class Result {
+
+		private final Object value;
+		private final long expiry;
+
+		private Result(Object value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+	}
+}
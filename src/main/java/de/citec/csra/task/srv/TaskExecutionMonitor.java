@@ -19,14 +19,23 @@ package de.citec.csra.task.srv;
 import de.citec.csra.task.cli.TaskListener;
 import de.citec.csra.task.TaskProxy;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import rsb.Event;
 import rsb.RSBException;
 import rst.communicationpatterns.TaskStateType.TaskState;
+import rst.communicationpatterns.TaskStateType.TaskState.State;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORTED;
 import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
 import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
 import static rst.communicationpatterns.TaskStateType.TaskState.State.FAILED;
@@ -42,57 +51,332 @@ public class TaskExecutionMonitor implements Callable<Void>, TaskListener {
 	private final TaskProxy proxy;
 	private LocalTask executor;
 	private final LocalTaskFactory factory;
-	private final ExecutorService service = Executors.newSingleThreadExecutor();
+	private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "task-fast-path");
+		t.setDaemon(true);
+		return t;
+	});
+	private final static ExecutorService ABORTER = Executors.newCachedThreadPool((r) -> {
+		Thread t = new Thread(r, "task-abort");
+		t.setDaemon(true);
+		return t;
+	});
+	private final static ExecutorService ESCALATOR = Executors.newCachedThreadPool((r) -> {
+		Thread t = new Thread(r, "task-escalation");
+		t.setDaemon(true);
+		return t;
+	});
+	private Object description;
+	private boolean decoded;
+	private Future future;
+	private long budget;
+	private Thread inline;
+	private boolean finished;
+	private boolean escalating;
+	private boolean aborted;
+	private BiConsumer<State, Object> completion = (state, result) -> {
+	};
 
 	public TaskExecutionMonitor(TaskProxy proxy, LocalTaskFactory factory) {
 		this.proxy = proxy;
 		this.factory = factory;
 	}
 
+	/**
+	 * Sets a handler that is called with the final state and the result or
+	 * error description once the task has ended.
+	 *
+	 * @param completion the completion handler
+	 */
+	public void setCompletionHandler(BiConsumer<State, Object> completion) {
+		this.completion = completion;
+	}
+
+	/**
+	 * Passes on a payload that has already been decoded from the task, so that
+	 * it is not decoded again for execution.
+	 *
+	 * @param description the decoded task payload
+	 */
+	void setDescription(Object description) {
+		this.description = description;
+		this.decoded = true;
+	}
+
+	/**
+	 * Enables the fast path for short tasks. Tasks without deadline are then
+	 * executed on the calling thread and, if they finish within the budget,
+	 * answered with a single COMPLETED update. Longer running tasks are
+	 * accepted when the budget is exceeded.
+	 *
+	 * @param budget the fast path budget in milliseconds, 0 to disable
+	 */
+	public void setFastPath(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the deadline of a task as given in the {@link TaskProxy#DEADLINE} user
+	 * info of the initiating event.
+	 *
+	 * @param cause the initiating event
+	 * @return the deadline in milliseconds since the epoch or
+	 * {@link Long#MAX_VALUE} if there is none
+	 */
+	public static long getDeadline(Event cause) {
+		if (!cause.getMetaData().hasUserInfo(TaskProxy.DEADLINE)) {
+			return Long.MAX_VALUE;
+		}
+		return parseDeadline(cause.getMetaData().getUserInfo(TaskProxy.DEADLINE));
+	}
+
+	private static long parseDeadline(String value) {
+		if (value == null) {
+			return Long.MAX_VALUE;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			LOG.log(Level.WARNING, "Ignoring invalid task deadline ''{0}''", value);
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Listens for an abort of the task while it waits for execution, e.g. in
+	 * the queue of a prioritized handler. A task aborted before it started is
+	 * not executed.
+	 *
+	 * @throws RSBException if the proxy cannot be activated
+	 * @throws InterruptedException if interrupted during activation
+	 */
+	void awaitExecution() throws RSBException, InterruptedException {
+		this.proxy.addTaskListener(this);
+		this.proxy.activate();
+	}
+
 	@Override
 	public Void call() {
-		
+
+		long deadline = parseDeadline(proxy.getUserInfo(TaskProxy.DEADLINE));
+		synchronized (this) {
+			if (this.aborted) {
+				LOG.log(Level.INFO, "Task aborted before execution.");
+				proxy.update(ABORTED);
+				this.completion.accept(ABORTED, null);
+				return null;
+			}
+		}
+		if (deadline < System.currentTimeMillis()) {
+			LOG.log(Level.INFO, "Task deadline exceeded by {0}ms before execution, rejecting.", System.currentTimeMillis() - deadline);
+			proxy.update(REJECTED, "Deadline exceeded");
+			this.completion.accept(REJECTED, "Deadline exceeded");
+			return null;
+		}
+		if (this.budget > 0 && deadline == Long.MAX_VALUE) {
+			return callInline();
+		}
+
+		this.proxy.addTaskListener(this);
 		try {
 			proxy.activate();
 		} catch (RSBException | InterruptedException ex) {
 			LOG.log(Level.SEVERE, "Unable to activate task proxy, refusing execution.", ex);
+			this.completion.accept(FAILED, ex.getMessage());
 			return null;
 		}
 
+		if (!createExecutor()) {
+			return null;
+		}
+
+		proxy.update(ACCEPTED);
+
+		ExecutorService service = Executors.newSingleThreadExecutor();
+		try {
+			Future future;
+			synchronized (this) {
+				if (this.aborted) {
+					throw new CancellationException();
+				}
+				future = service.submit(this.executor);
+				this.future = future;
+			}
+			Object result;
+			if (deadline == Long.MAX_VALUE) {
+				result = future.get();
+			} else {
+				result = future.get(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			}
+
+//			update also implies deactivation
+			proxy.update(COMPLETED, result);
+			this.completion.accept(COMPLETED, result);
+		} catch (TimeoutException ex) {
+			LOG.log(Level.INFO, "Task deadline exceeded, aborting execution.");
+			abort();
+			proxy.update(ABORTED, "Deadline exceeded");
+			this.completion.accept(ABORTED, "Deadline exceeded");
+		} catch (CancellationException ex) {
+			proxy.update(ABORTED);
+			this.completion.accept(ABORTED, null);
+		} catch (ExecutionException ex) {
+			proxy.update(FAILED, ex.getCause().getMessage());
+			this.completion.accept(FAILED, ex.getCause().getMessage());
+		} catch (InterruptedException ex) {
+			proxy.update(FAILED, ex.getMessage());
+			this.completion.accept(FAILED, ex.getMessage());
+			Thread.currentThread().interrupt();
+		} finally {
+			service.shutdown();
+		}
+		return null;
+	}
+
+	private boolean createExecutor() {
 		try {
-			this.executor = factory.newLocalTask(proxy.getPayload());
+			if (!this.decoded) {
+				this.description = proxy.getPayload();
+			}
+			this.executor = factory.newLocalTask(this.description);
 		} catch (IllegalArgumentException ex) {
 			LOG.log(Level.SEVERE, "Unable to generate task executor, rejecting task.", ex);
 			proxy.update(REJECTED, ex.getMessage());
 			proxy.deactivate();
-			return null;
+			this.completion.accept(REJECTED, ex.getMessage());
+			return false;
 		}
-		
-		if(this.executor == null){
+
+		if (this.executor == null) {
 			LOG.log(Level.SEVERE, "Unable to generate task executor, rejecting task.");
 			proxy.update(REJECTED);
 			proxy.deactivate();
+			this.completion.accept(REJECTED, null);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the task on the calling thread. The task is only accepted and the
+	 * proxy only activated if the task does not finish within the budget,
+	 * otherwise the result is sent right away.
+	 */
+	private Void callInline() {
+		if (!createExecutor()) {
 			return null;
 		}
-		
-		proxy.update(ACCEPTED);
-		
-		try {
+		ScheduledFuture<?> escalation;
+		synchronized (this) {
+			this.inline = Thread.currentThread();
+			escalation = TIMER.schedule(() -> ESCALATOR.execute(this::escalate), this.budget, TimeUnit.MILLISECONDS);
+		}
 
-			Future future = service.submit(this.executor);
-			Object result = future.get();
+		State state;
+		Object result;
+		try {
+			result = this.executor.call();
+			state = COMPLETED;
+		} catch (Exception ex) {
+			result = ex.getMessage();
+			state = FAILED;
+		}
+		escalation.cancel(false);
 
-//			update also implies deactivation
-			proxy.update(COMPLETED, result);
-		} catch (ExecutionException ex) {
-			proxy.update(FAILED, ex.getCause().getMessage());
-		} catch (InterruptedException ex) {
-			proxy.update(FAILED, ex.getMessage());
-			Thread.currentThread().interrupt();
+		synchronized (this) {
+			this.inline = null;
+			this.finished = true;
+			if (this.aborted) {
+				Thread.interrupted();
+				state = ABORTED;
+				result = null;
+			}
+			boolean interrupted = false;
+			while (this.escalating) {
+				try {
+					this.wait();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
+//		update also implies deactivation
+		proxy.update(state, result);
+		this.completion.accept(state, result);
 		return null;
 	}
 
+	/**
+	 * Accepts a task that exceeded the fast path budget. Runs on its own
+	 * thread, so that activating the proxy neither delays the timer of other
+	 * tasks nor blocks abortion. The final update of the task waits until the
+	 * escalation is done.
+	 */
+	private void escalate() {
+		synchronized (this) {
+			if (this.finished) {
+				return;
+			}
+			this.escalating = true;
+		}
+		try {
+			LOG.log(Level.FINE, "Task exceeded fast path budget of {0}ms, accepting.", this.budget);
+			this.proxy.addTaskListener(this);
+			try {
+				this.proxy.activate();
+			} catch (RSBException ex) {
+				LOG.log(Level.WARNING, "Unable to activate task proxy, task cannot be aborted.", ex);
+			} catch (InterruptedException ex) {
+				LOG.log(Level.WARNING, "Interrupted during task proxy activation, task cannot be aborted.", ex);
+				Thread.currentThread().interrupt();
+			}
+			this.proxy.update(ACCEPTED);
+		} finally {
+			synchronized (this) {
+				this.escalating = false;
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Aborts the execution by interrupting the executing thread. The abort hook
+	 * of the local task is run on a separate thread, so that neither the
+	 * caller, which may be the dispatcher of the proxy, is blocked nor the
+	 * default hook interrupts it.
+	 */
+	private synchronized void abort() {
+		if (this.inline != null) {
+			abort(this.executor, this.description);
+			this.aborted = true;
+			this.inline.interrupt();
+			return;
+		}
+		if (this.future == null) {
+//			not started yet
+			this.aborted = !this.finished;
+			return;
+		}
+		if (this.future.isDone()) {
+			return;
+		}
+		abort(this.executor, this.description);
+		this.future.cancel(true);
+	}
+
+	static void abort(LocalTask task, Object description) {
+		ABORTER.execute(() -> {
+			try {
+				task.abort(description);
+			} catch (Exception ex) {
+				LOG.log(Level.SEVERE, "Abort of local task failed.", ex);
+			}
+		});
+	}
+
 	@Override
 	public void updated(TaskState state) {
 		switch (state.getState()) {
@@ -100,12 +384,7 @@ public class TaskExecutionMonitor implements Callable<Void>, TaskListener {
 			case ABORTED:
 			case FAILED:
 			case UPDATE_REJECTED:
-				try {
-					executor.abort(proxy.getPayload());
-				} catch (Exception ex) {
-					Logger.getLogger(TaskExecutionMonitor.class.getName()).log(Level.SEVERE, null, ex);
-				}
-				service.shutdownNow();
+				abort();
 				break;
 			default:
 				break;
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import de.citec.csra.task.TaskProxy;
+import de.citec.csra.task.cli.TaskListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import rsb.Event;
+import rsb.Informer;
+import rsb.RSBException;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.FAILED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.REJECTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.RESULT_AVAILABLE;
+
+/**
+ * Executes graphs of local tasks within the server. The graph is given in the
+ * {@link TaskProxy#GRAPH} user info of the initiating event as a semicolon
+ * separated list of nodes {@code name=factory(dependency,...)}, e.g.
+ * {@code asr=recognize($);nlu=parse(asr);reply=answer(nlu,$)}. The task payload
+ * is referred to as {@code $}, a node without dependencies receives the
+ * payload. A node with one dependency receives its result as description,
+ * a node with several dependencies receives the list of their results.
+ * Nodes must be listed after their dependencies, independent nodes are
+ * executed in parallel. The task completes once all nodes that no other node
+ * depends on have completed, its result is the result of the last node. If
+ * any node fails, the remaining nodes are aborted and the task fails. If the
+ * {@link TaskProxy#GRAPH_PROGRESS} user info is set to true, the completion
+ * of each node is reported as RESULT_AVAILABLE with the node name as payload.
+ * Tasks without graph are passed on to the fallback handler.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskGraphHandler implements TaskHandler {
+
+	private final static Logger LOG = Logger.getLogger(TaskGraphHandler.class.getName());
+	public final static String INPUT = "$";
+	private final static Pattern NODE = Pattern.compile("\\s*([\\w-]+)\\s*=\\s*([\\w.-]+)\\s*\\(([^)]*)\\)\\s*");
+
+	private final Map<String, LocalTaskFactory> factories = new ConcurrentHashMap<>();
+	private final TaskHandler fallback;
+	private final ExecutorService service;
+
+	public TaskGraphHandler(TaskHandler fallback) {
+		this(fallback, Executors.newCachedThreadPool());
+	}
+
+	/**
+	 * Creates a graph handler. Graph executions wait for their nodes, so the
+	 * executor must not be bounded below the number of concurrent nodes plus
+	 * graphs.
+	 *
+	 * @param fallback the handler for tasks without graph or null
+	 * @param service the executor for graphs and nodes
+	 */
+	public TaskGraphHandler(TaskHandler fallback, ExecutorService service) {
+		this.fallback = fallback;
+		this.service = service;
+	}
+
+	public void addFactory(String name, LocalTaskFactory factory) {
+		this.factories.put(name, factory);
+	}
+
+	public void removeFactory(String name) {
+		this.factories.remove(name);
+	}
+
+	@Override
+	public void handle(TaskState t, Event e, Informer i) throws Exception {
+		if (!e.getMetaData().hasUserInfo(TaskProxy.GRAPH)) {
+			if (this.fallback != null) {
+				this.fallback.handle(t, e, i);
+			} else {
+				LOG.log(Level.WARNING, "Ignoring task at ''{0}'' without graph.", e.getScope());
+			}
+			return;
+		}
+		TaskProxy proxy = new TaskProxy(t, e, i);
+		boolean progress = Boolean.parseBoolean(e.getMetaData().getUserInfo(TaskProxy.GRAPH_PROGRESS));
+		this.service.submit(new GraphExecution(proxy, e.getMetaData().getUserInfo(TaskProxy.GRAPH), progress));
+	}
+
+	private static class Node {
+
+		private final String name;
+		private final String factory;
+		private final List<String> dependencies;
+
+		private Node(String name, String factory, List<String> dependencies) {
+			this.name = name;
+			this.factory = factory;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private List<Node> parse(String graph) throws IllegalArgumentException {
+		List<Node> nodes = new ArrayList<>();
+		Set<String> known = new HashSet<>(Collections.singleton(INPUT));
+		for (String spec : graph.split(";")) {
+			if (spec.trim().isEmpty()) {
+				continue;
+			}
+			Matcher m = NODE.matcher(spec);
+			if (!m.matches()) {
+				throw new IllegalArgumentException("Malformed graph node '" + spec + "'.");
+			}
+			String name = m.group(1);
+			if (!known.add(name)) {
+				throw new IllegalArgumentException("Duplicate graph node '" + name + "'.");
+			}
+			if (!this.factories.containsKey(m.group(2))) {
+				throw new IllegalArgumentException("Unknown task factory '" + m.group(2) + "' in graph node '" + name + "'.");
+			}
+			List<String> dependencies = new ArrayList<>();
+			for (String dependency : m.group(3).split(",")) {
+				if (!dependency.trim().isEmpty()) {
+					dependencies.add(dependency.trim());
+				}
+			}
+			if (dependencies.isEmpty()) {
+				dependencies.add(INPUT);
+			}
+			for (String dependency : dependencies) {
+				if (!known.contains(dependency) || dependency.equals(name)) {
+					throw new IllegalArgumentException("Graph node '" + name + "' depends on undefined node '" + dependency + "'.");
+				}
+			}
+			nodes.add(new Node(name, m.group(2), dependencies));
+		}
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("Empty task graph.");
+		}
+		return nodes;
+	}
+
+	private static class Execution {
+
+		private final Thread thread;
+		private final Object description;
+
+		private Execution(Thread thread, Object description) {
+			this.thread = thread;
+			this.description = description;
+		}
+	}
+
+	private class GraphExecution implements Callable<Void>, TaskListener {
+
+		private final TaskProxy proxy;
+		private final String graph;
+		private final boolean progress;
+		private final Map<LocalTask, Execution> running = new HashMap<>();
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+		private volatile boolean aborted;
+		private boolean stopped;
+
+		private GraphExecution(TaskProxy proxy, String graph, boolean progress) {
+			this.proxy = proxy;
+			this.graph = graph;
+			this.progress = progress;
+		}
+
+		@Override
+		public Void call() {
+			this.proxy.addTaskListener(this);
+			try {
+				this.proxy.activate();
+			} catch (RSBException | InterruptedException ex) {
+				LOG.log(Level.SEVERE, "Unable to activate task proxy, refusing execution.", ex);
+				return null;
+			}
+
+			List<Node> nodes;
+			try {
+				nodes = parse(this.graph);
+			} catch (IllegalArgumentException ex) {
+				LOG.log(Level.SEVERE, "Invalid task graph, rejecting task.", ex);
+				this.proxy.update(REJECTED, ex.getMessage());
+				return null;
+			}
+
+			this.proxy.update(ACCEPTED);
+
+			Map<String, CompletableFuture<Object>> results = new HashMap<>();
+			results.put(INPUT, CompletableFuture.completedFuture(this.proxy.getPayload()));
+			Set<String> required = new HashSet<>();
+			CompletableFuture<Object> last = null;
+			for (Node node : nodes) {
+				CompletableFuture<?>[] dependencies = new CompletableFuture<?>[node.dependencies.size()];
+				for (int i = 0; i < dependencies.length; i++) {
+					dependencies[i] = results.get(node.dependencies.get(i));
+				}
+				required.addAll(node.dependencies);
+				last = CompletableFuture.allOf(dependencies).thenApplyAsync((v) -> {
+					Object description;
+					if (dependencies.length == 1) {
+						description = dependencies[0].join();
+					} else {
+						Object[] inputs = new Object[dependencies.length];
+						for (int i = 0; i < inputs.length; i++) {
+							inputs[i] = dependencies[i].join();
+						}
+						description = Arrays.asList(inputs);
+					}
+					return execute(node, description);
+				}, service);
+				last.whenComplete((result, ex) -> {
+					if (ex != null) {
+						fail(ex);
+					}
+				});
+				results.put(node.name, last);
+			}
+
+			List<CompletableFuture<Object>> sinks = new ArrayList<>();
+			for (Node node : nodes) {
+				if (!required.contains(node.name)) {
+					sinks.add(results.get(node.name));
+				}
+			}
+
+			try {
+				CompletableFuture.allOf(sinks.toArray(new CompletableFuture<?>[sinks.size()])).get();
+				if (this.aborted) {
+//					sinks may have ignored the interrupt
+					this.proxy.update(ABORTED);
+				} else {
+					this.proxy.update(COMPLETED, last.join());
+				}
+			} catch (ExecutionException ex) {
+				if (this.aborted) {
+					this.proxy.update(ABORTED);
+				} else {
+					Throwable cause = this.failure.get() != null ? this.failure.get() : unwrap(ex.getCause());
+					this.proxy.update(FAILED, cause.getMessage());
+				}
+			} catch (InterruptedException ex) {
+				stop();
+				this.proxy.update(FAILED, ex.getMessage());
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
+
+		private Throwable unwrap(Throwable ex) {
+			return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+		}
+
+		private void fail(Throwable ex) {
+			Throwable cause = unwrap(ex);
+			if (!(cause instanceof CancellationException) && this.failure.compareAndSet(null, cause)) {
+				LOG.log(Level.FINE, "Task graph node failed, aborting remaining nodes.", cause);
+			}
+			stop();
+		}
+
+		private Object execute(Node node, Object description) {
+			synchronized (this) {
+				if (this.stopped) {
+					throw new CancellationException("Task graph aborted.");
+				}
+			}
+			LocalTask task = factories.get(node.factory).newLocalTask(description);
+			if (task == null) {
+				throw new IllegalArgumentException("Unable to generate task executor for graph node '" + node.name + "'.");
+			}
+			synchronized (this) {
+				if (this.stopped) {
+					TaskExecutionMonitor.abort(task, description);
+					throw new CancellationException("Task graph aborted.");
+				}
+				this.running.put(task, new Execution(Thread.currentThread(), description));
+			}
+			try {
+				Object result = task.call();
+				if (this.progress) {
+					this.proxy.update(RESULT_AVAILABLE, node.name);
+				}
+				return result;
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new CompletionException(ex);
+			} finally {
+				synchronized (this) {
+					this.running.remove(task);
+					if (this.stopped) {
+//						clear an interrupt that was meant for this node
+						Thread.interrupted();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Stops the graph: nodes that did not start yet are skipped, running
+		 * nodes are interrupted and their abort hooks are run on a separate
+		 * thread.
+		 */
+		private synchronized void stop() {
+			if (this.stopped) {
+				return;
+			}
+			this.stopped = true;
+			for (Map.Entry<LocalTask, Execution> node : this.running.entrySet()) {
+				TaskExecutionMonitor.abort(node.getKey(), node.getValue().description);
+				node.getValue().thread.interrupt();
+			}
+		}
+
+		@Override
+		public void updated(TaskState state) {
+			switch (state.getState()) {
+				case ABORT:
+				case ABORTED:
+				case FAILED:
+				case UPDATE_REJECTED:
+					this.aborted = true;
+					stop();
+					break;
+				default:
+					break;
+			}
+		}
+	}
+}
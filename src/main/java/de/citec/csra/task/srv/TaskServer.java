@@ -16,6 +16,7 @@
  */
 package de.citec.csra.task.srv;
 
+import de.citec.csra.task.TaskProxy;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,6 +29,7 @@ import rsb.filter.OriginFilter;
 import rsb.util.EventQueueAdapter;
 import rst.communicationpatterns.TaskStateType.TaskState;
 import static rst.communicationpatterns.TaskStateType.TaskState.Origin.SUBMITTER;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.REJECTED;
 
 /**
  *
@@ -63,6 +65,17 @@ public class TaskServer {
 				if (task.getOrigin().equals(SUBMITTER)) {
 					switch (task.getState()) {
 						case INITIATED:
+							long deadline = TaskExecutionMonitor.getDeadline(e);
+							if (deadline < System.currentTimeMillis()) {
+								LOG.log(Level.INFO, "Rejecting task at ''{0}'' that expired {1}ms ago.", new Object[]{e.getScope(), System.currentTimeMillis() - deadline});
+								try {
+//									update also implies deactivation
+									new TaskProxy(task, e, this.informer).update(REJECTED, "Deadline exceeded");
+								} catch (RSBException ex) {
+									LOG.log(Level.SEVERE, "Could not establish rsb communication, ignoring.", ex);
+								}
+								break;
+							}
 							try {
 								handler.handle(task, e, this.informer);
 							} catch (RSBException ex) {
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers updates to a single listener asynchronously via the given executor.
+ * Updates are delivered in order and never concurrently. The mailbox is
+ * bounded, if the listener falls behind the oldest pending update is dropped.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ * @param <T> the update type
+ */
+public class ListenerMailbox<T> implements Consumer<T> {
+
+	private final static Logger LOG = Logger.getLogger(ListenerMailbox.class.getName());
+	public final static int CAPACITY = 64;
+
+	private final Consumer<T> listener;
+	private final Executor executor;
+	private final ArrayDeque<T> mailbox;
+	private final int capacity;
+	private boolean scheduled;
+	private long dropped;
+
+	public ListenerMailbox(Consumer<T> listener, Executor executor) {
+		this(listener, executor, CAPACITY);
+	}
+
+	public ListenerMailbox(Consumer<T> listener, Executor executor, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive.");
+		}
+		this.listener = listener;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.mailbox = new ArrayDeque<>(capacity);
+	}
+
+	@Override
+	public void accept(T update) {
+		synchronized (this) {
+			if (this.mailbox.size() == this.capacity) {
+				this.mailbox.poll();
+				this.dropped++;
+				LOG.log(Level.WARNING, "Listener mailbox full, dropped oldest update ({0} in total)", this.dropped);
+			}
+			this.mailbox.add(update);
+			if (this.scheduled) {
+				return;
+			}
+			this.scheduled = true;
+		}
+		submit();
+	}
+
+	private void submit() {
+		try {
+			this.executor.execute(this::drain);
+		} catch (RejectedExecutionException ex) {
+			LOG.log(Level.WARNING, "Listener executor rejected delivery, discarding pending updates", ex);
+			synchronized (this) {
+				this.dropped += this.mailbox.size();
+				this.mailbox.clear();
+				this.scheduled = false;
+			}
+		}
+	}
+
+	private void drain() {
+		for (int i = 0; i < this.capacity; i++) {
+			T update;
+			synchronized (this) {
+				update = this.mailbox.poll();
+				if (update == null) {
+					this.scheduled = false;
+					return;
+				}
+			}
+			try {
+				this.listener.accept(update);
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Listener failed to process update", ex);
+			}
+		}
+		submit();
+	}
+
+	public synchronized int size() {
+		return this.mailbox.size();
+	}
+
+	public synchronized long getDroppedCount() {
+		return this.dropped;
+	}
+}
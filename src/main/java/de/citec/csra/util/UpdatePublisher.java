@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.util;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Reactive streams publisher for a stream of updates. Subscribers only receive
+ * as many updates as they requested, updates that arrive in the meantime are
+ * buffered per subscriber up to a bounded capacity, beyond which the oldest
+ * ones are dropped. Subscribers only see updates published after they
+ * subscribed.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ * @param <T> the update type
+ */
+public class UpdatePublisher<T> implements Publisher<T>, Consumer<T> {
+
+	private final static Logger LOG = Logger.getLogger(UpdatePublisher.class.getName());
+	public final static int CAPACITY = 256;
+
+	private final int capacity;
+	private final List<UpdateSubscription> subscriptions = new CopyOnWriteArrayList<>();
+	private final List<Consumer<T>> operators = new CopyOnWriteArrayList<>();
+	private final List<UpdatePublisher<?>> derived = new CopyOnWriteArrayList<>();
+	private volatile boolean completed;
+
+	public UpdatePublisher() {
+		this(CAPACITY);
+	}
+
+	public UpdatePublisher(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive.");
+		}
+		this.capacity = capacity;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("Subscriber must not be null.");
+		}
+		UpdateSubscription subscription = new UpdateSubscription(subscriber);
+		this.subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+		if (this.completed) {
+			subscription.complete();
+		}
+		subscription.start();
+	}
+
+	@Override
+	public void accept(T update) {
+		if (this.completed) {
+			return;
+		}
+		for (UpdateSubscription subscription : this.subscriptions) {
+			subscription.offer(update);
+		}
+		for (Consumer<T> operator : this.operators) {
+			operator.accept(update);
+		}
+	}
+
+	public void complete() {
+		if (this.completed) {
+			return;
+		}
+		this.completed = true;
+		for (UpdateSubscription subscription : this.subscriptions) {
+			subscription.complete();
+		}
+		for (UpdatePublisher<?> publisher : this.derived) {
+			publisher.complete();
+		}
+	}
+
+	public boolean isCompleted() {
+		return this.completed;
+	}
+
+	public UpdatePublisher<T> filter(Predicate<? super T> predicate) {
+		UpdatePublisher<T> filtered = derive();
+		this.operators.add((update) -> {
+			if (predicate.test(update)) {
+				filtered.accept(update);
+			}
+		});
+		return filtered;
+	}
+
+	public <R> UpdatePublisher<R> map(Function<? super T, ? extends R> function) {
+		UpdatePublisher<R> mapped = derive();
+		this.operators.add((update) -> {
+			mapped.accept(function.apply(update));
+		});
+		return mapped;
+	}
+
+	private <R> UpdatePublisher<R> derive() {
+		UpdatePublisher<R> publisher = new UpdatePublisher<>(this.capacity);
+		this.derived.add(publisher);
+		if (this.completed) {
+			publisher.complete();
+		}
+		return publisher;
+	}
+
+	private class UpdateSubscription implements Subscription {
+
+		private final Subscriber<? super T> subscriber;
+		private final ArrayDeque<T> buffer = new ArrayDeque<>();
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled;
+		private boolean done;
+		private Throwable error;
+		private long dropped;
+
+		private UpdateSubscription(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+//			no signals before onSubscribe has returned, see start()
+			this.wip.set(1);
+		}
+
+		/**
+		 * Starts delivery once onSubscribe has returned, signals that were
+		 * triggered in the meantime are delivered now.
+		 */
+		private void start() {
+			emit();
+		}
+
+		private void offer(T update) {
+			synchronized (this) {
+				if (this.done) {
+					return;
+				}
+				if (this.buffer.size() == capacity) {
+					this.buffer.poll();
+					this.dropped++;
+					LOG.log(Level.FINE, "Subscriber lagging behind, dropped oldest update ({0} in total)", this.dropped);
+				}
+				this.buffer.add(update);
+			}
+			drain();
+		}
+
+		private void complete() {
+			synchronized (this) {
+				this.done = true;
+			}
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				synchronized (this) {
+					this.done = true;
+					this.error = new IllegalArgumentException("Requested " + n + " updates, demand must be positive.");
+					this.buffer.clear();
+				}
+			} else {
+				long current;
+				long next;
+				do {
+					current = this.requested.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!this.requested.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+			subscriptions.remove(this);
+			synchronized (this) {
+				this.buffer.clear();
+			}
+		}
+
+		private void drain() {
+			if (this.wip.getAndIncrement() != 0) {
+				return;
+			}
+			emit();
+		}
+
+		private void emit() {
+			int missed = 1;
+			do {
+				long demand = this.requested.get();
+				long emitted = 0;
+				while (!this.cancelled) {
+					T update = null;
+					boolean finished;
+					Throwable failure;
+					synchronized (this) {
+						failure = this.error;
+						if (failure == null && emitted != demand) {
+							update = this.buffer.poll();
+						}
+						finished = this.done && this.buffer.isEmpty();
+					}
+					if (failure != null) {
+						cancel();
+						this.subscriber.onError(failure);
+						return;
+					}
+					if (update != null) {
+						this.subscriber.onNext(update);
+						emitted++;
+					} else {
+						if (finished) {
+							cancel();
+							this.subscriber.onComplete();
+							return;
+						}
+						break;
+					}
+				}
+				if (emitted != 0 && demand != Long.MAX_VALUE) {
+					this.requested.addAndGet(-emitted);
+				}
+				missed = this.wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
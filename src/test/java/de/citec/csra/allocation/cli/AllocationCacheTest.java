@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REQUESTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class AllocationCacheTest {
+
+	private final static long DELAY = 100;
+
+	private final List<Event> replies = new CopyOnWriteArrayList<>();
+	private Scope scope;
+	private AllocationCache cache;
+	private Informer<Object> scheduler;
+	private Informer<Object> client;
+	private Listener listener;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		this.scope = new Scope(RemoteAllocationService.getScope());
+		this.cache = new AllocationCache(true, DELAY);
+		this.cache.startup();
+		this.scheduler = Factory.getInstance().createInformer(this.scope);
+		this.client = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.scheduler.activate();
+		this.client.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				if (RemoteAllocationService.isSnapshotReply(e)) {
+					replies.add(e);
+				}
+			}
+		}, true);
+		this.listener.activate();
+
+		this.scheduler.publish(new Event(this.scope, ResourceAllocation.class, allocation()));
+		long deadline = System.currentTimeMillis() + 2000;
+		while (this.cache.getSnapshot("res").isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.cache.shutdown();
+		this.listener.deactivate();
+		this.client.deactivate();
+		this.scheduler.deactivate();
+		RemoteAllocationService.getInstance().shutdownNow();
+	}
+
+	@Test
+	public void answersWithoutScheduler() throws Exception {
+		query();
+		Thread.sleep(DELAY * 3);
+		assertEquals(1, this.replies.size());
+		assertTrue(RemoteAllocationService.isCachedReply(this.replies.get(0)));
+	}
+
+	@Test
+	public void leavesQueryToScheduler() throws Exception {
+		Event query = query();
+		reply(query, allocation());
+		Thread.sleep(DELAY * 3);
+		assertEquals(1, this.replies.size());
+		assertTrue(!RemoteAllocationService.isCachedReply(this.replies.get(0)));
+	}
+
+	@Test
+	public void leavesEmptyAnswerToScheduler() throws Exception {
+		reply(query());
+		Thread.sleep(DELAY * 3);
+		assertTrue(this.replies.isEmpty());
+	}
+
+	@Test
+	public void cachesOnlySchedulerUpdates() throws Exception {
+		ResourceAllocation request = ResourceAllocation.newBuilder()
+				.setId("b")
+				.setState(REQUESTED)
+				.addResourceIds("res")
+				.build();
+		this.client.publish(new Event(this.scope, ResourceAllocation.class, request));
+		this.client.publish(new Event(this.scope, ResourceAllocation.class, ResourceAllocation.newBuilder(request).setState(SCHEDULED).build()));
+		Event cached = new Event(this.scope, ResourceAllocation.class, ResourceAllocation.newBuilder(request).setId("c").setState(SCHEDULED).build());
+		cached.setMethod(RemoteAllocationService.SNAPSHOT);
+		cached.getMetaData().setUserInfo(RemoteAllocationService.CACHED, Boolean.TRUE.toString());
+		this.scheduler.publish(cached);
+		Thread.sleep(DELAY);
+		assertEquals(1, this.cache.getSnapshot("res").size());
+		assertEquals("a", this.cache.getSnapshot("res").get(0).getId());
+	}
+
+	private void reply(Event query, ResourceAllocation... allocations) throws RSBException {
+		for (ResourceAllocation allocation : allocations) {
+			Event reply = new Event(this.scope, ResourceAllocation.class, allocation);
+			reply.setMethod(RemoteAllocationService.SNAPSHOT);
+			reply.addCause(query.getId());
+			this.scheduler.publish(reply);
+		}
+		Event end = new Event(this.scope, String.class, String.valueOf(allocations.length));
+		end.setMethod(RemoteAllocationService.SNAPSHOT_END);
+		end.addCause(query.getId());
+		this.scheduler.publish(end);
+	}
+
+	private Event query() throws RSBException {
+		Event query = new Event(this.scope, String.class, "res");
+		query.setMethod(RemoteAllocationService.SNAPSHOT);
+		return this.client.publish(query);
+	}
+
+	private static ResourceAllocation allocation() {
+		return ResourceAllocation.newBuilder()
+				.setId("a")
+				.setState(ALLOCATED)
+				.addResourceIds("res")
+				.build();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import rsb.Event;
+import rsb.Scope;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class AllocationCodecTest {
+
+	@Test
+	public void sendsDeltasAfterFullRecord() {
+		AllocationCodec codec = new AllocationCodec(true);
+		assertFalse(isDelta(encode(codec, SCHEDULED, false)));
+		assertTrue(isDelta(encode(codec, ALLOCATED, false)));
+	}
+
+	@Test
+	public void rebuildsFullRecordFromDelta() {
+		AllocationCodec sender = new AllocationCodec(true);
+		AllocationCodec receiver = new AllocationCodec(true);
+		assertTrue(receiver.decode(encode(sender, SCHEDULED, false)));
+		Event delta = encode(sender, ALLOCATED, false);
+		assertTrue(receiver.decode(delta));
+		assertEquals(Arrays.asList("res"), ((ResourceAllocation) delta.getData()).getResourceIdsList());
+	}
+
+	@Test
+	public void dropsDeltasOfUnknownAllocations() {
+		AllocationCodec sender = new AllocationCodec(true);
+		AllocationCodec receiver = new AllocationCodec(true);
+		encode(sender, SCHEDULED, false);
+		assertFalse(receiver.decode(encode(sender, ALLOCATED, false)));
+		assertEquals(1, receiver.getUndecodableCount());
+	}
+
+	@Test
+	public void sendsFullRecordsPeriodically() throws InterruptedException {
+		AllocationCodec codec = new AllocationCodec(true, 50);
+		encode(codec, SCHEDULED, false);
+		Thread.sleep(100);
+		assertFalse(isDelta(encode(codec, ALLOCATED, false)));
+		assertTrue(isDelta(encode(codec, ALLOCATED, false)));
+	}
+
+	@Test
+	public void sendsFullRecordWhenAllocationEnds() {
+		AllocationCodec codec = new AllocationCodec(true);
+		encode(codec, SCHEDULED, false);
+		assertFalse(isDelta(encode(codec, RELEASED, false)));
+	}
+
+	@Test
+	public void sendsFullRecordAfterRefresh() {
+		AllocationCodec codec = new AllocationCodec(true);
+		encode(codec, SCHEDULED, false);
+		codec.refresh(Arrays.asList("other"));
+		assertTrue(isDelta(encode(codec, ALLOCATED, false)));
+		codec.refresh(Arrays.asList("res"));
+		assertFalse(isDelta(encode(codec, ALLOCATED, false)));
+	}
+
+	@Test
+	public void versionsEventsInOrder() {
+		AllocationCodec codec = new AllocationCodec(false);
+		long first = version(encode(codec, SCHEDULED, false));
+		long second = version(encode(codec, ALLOCATED, true));
+		assertTrue(second > first);
+	}
+
+	private static Event encode(AllocationCodec codec, State state, boolean full) {
+		ResourceAllocation allocation = ResourceAllocation.newBuilder()
+				.setId("codec")
+				.setState(state)
+				.setDescription("description")
+				.addResourceIds("res")
+				.build();
+		Event event = new Event(new Scope(RemoteAllocationService.getScope()), ResourceAllocation.class, allocation);
+		codec.encode(event, full);
+		return event;
+	}
+
+	private static boolean isDelta(Event event) {
+		return event.getMetaData().hasUserInfo(AllocationCodec.ENCODING)
+				&& ((ResourceAllocation) event.getData()).getResourceIdsCount() == 0;
+	}
+
+	private static long version(Event event) {
+		return Long.parseLong(event.getMetaData().getUserInfo(AllocationCodec.VERSION));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import rsb.Event;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ConflatingQueueAdapterTest {
+
+	private static Event event(String id, ResourceAllocation.State state) {
+		ResourceAllocation a = ResourceAllocation.newBuilder().setId(id).setState(state).buildPartial();
+		return new Event(ResourceAllocation.class, a);
+	}
+
+	private static ResourceAllocation poll(ConflatingQueueAdapter qa) throws InterruptedException {
+		return (ResourceAllocation) qa.poll(0, TimeUnit.MILLISECONDS).getData();
+	}
+
+	@Test
+	public void deliversInOrder() throws InterruptedException {
+		ConflatingQueueAdapter qa = new ConflatingQueueAdapter();
+		qa.handleEvent(event("a", SCHEDULED));
+		qa.handleEvent(event("a", ALLOCATED));
+		qa.handleEvent(event("b", SCHEDULED));
+		assertEquals(SCHEDULED, poll(qa).getState());
+		assertEquals(ALLOCATED, poll(qa).getState());
+		assertEquals("b", poll(qa).getId());
+		assertNull(qa.poll(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void conflatesPerAllocationWhenFull() throws InterruptedException {
+		ConflatingQueueAdapter qa = new ConflatingQueueAdapter(3, (a) -> true);
+		qa.handleEvent(event("a", SCHEDULED));
+		qa.handleEvent(event("b", SCHEDULED));
+		qa.handleEvent(event("a", ALLOCATED));
+		qa.handleEvent(event("a", RELEASED));
+		assertEquals(1, qa.getConflatedCount());
+		assertEquals(0, qa.getOverflowCount());
+		assertEquals(3, qa.size());
+		assertEquals("b", poll(qa).getId());
+		assertEquals(ALLOCATED, poll(qa).getState());
+		assertEquals(RELEASED, poll(qa).getState());
+	}
+
+	@Test
+	public void dropsOldestIfNothingToConflate() throws InterruptedException {
+		ConflatingQueueAdapter qa = new ConflatingQueueAdapter(2, (a) -> true);
+		qa.handleEvent(event("a", SCHEDULED));
+		qa.handleEvent(event("b", SCHEDULED));
+		qa.handleEvent(event("c", SCHEDULED));
+		assertEquals(1, qa.getOverflowCount());
+		assertEquals("b", poll(qa).getId());
+		assertEquals("c", poll(qa).getId());
+	}
+
+	@Test
+	public void appliesFilter() {
+		ConflatingQueueAdapter qa = new ConflatingQueueAdapter((a) -> a.getId().equals("a"));
+		qa.handleEvent(event("a", SCHEDULED));
+		qa.handleEvent(event("b", SCHEDULED));
+		assertEquals(1, qa.size());
+	}
+}
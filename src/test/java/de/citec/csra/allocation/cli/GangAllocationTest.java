@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.CANCELLED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REJECTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class GangAllocationTest {
+
+	private static class Member extends RemoteAllocation {
+
+		private final Set<SchedulerListener> registered = new HashSet<>();
+		private Runnable before = () -> {
+		};
+		private Runnable after = () -> {
+		};
+		private boolean scheduled;
+
+		private Member() {
+			super(ResourceAllocation.newBuilder());
+		}
+
+		@Override
+		public void schedule() {
+			this.before.run();
+			this.scheduled = true;
+			this.after.run();
+		}
+
+		@Override
+		public boolean isScheduled() {
+			return this.scheduled;
+		}
+
+		@Override
+		protected void requestState(State newState) {
+			update(newState);
+		}
+
+		@Override
+		public void addSchedulerListener(SchedulerListener l) {
+			super.addSchedulerListener(l);
+			this.registered.add(l);
+		}
+
+		@Override
+		public void removeSchedulerListener(SchedulerListener l) {
+			super.removeSchedulerListener(l);
+			this.registered.remove(l);
+		}
+
+		private void update(State state) {
+			allocationUpdated(ResourceAllocation.newBuilder(getAllocation()).setState(state).build());
+		}
+	}
+
+	@Test
+	public void schedulesWhenAllMembersAreScheduled() throws Exception {
+		Member a = new Member();
+		Member b = new Member();
+		GangAllocation gang = new GangAllocation(Arrays.asList(a, b));
+		gang.schedule();
+		assertTrue(a.registered.contains(gang));
+
+		a.update(SCHEDULED);
+		assertEquals(State.REQUESTED, gang.getState());
+		b.update(SCHEDULED);
+		assertEquals(SCHEDULED, gang.await(0));
+		assertTrue(a.registered.isEmpty());
+		assertTrue(b.registered.isEmpty());
+	}
+
+	@Test
+	public void rollsBackWhenMemberFails() throws Exception {
+		Member a = new Member();
+		Member b = new Member();
+		GangAllocation gang = new GangAllocation(Arrays.asList(a, b));
+		gang.schedule();
+
+		a.update(SCHEDULED);
+		b.update(REJECTED);
+		assertEquals(REJECTED, gang.await(0));
+		assertEquals(CANCELLED, a.getCurrentState());
+		assertTrue(a.registered.isEmpty());
+		assertTrue(b.registered.isEmpty());
+	}
+
+	@Test
+	public void stopsSchedulingWhenMemberIsRejectedSynchronously() throws Exception {
+		Member a = new Member();
+		Member b = new Member();
+		a.after = () -> a.update(REJECTED);
+		GangAllocation gang = new GangAllocation(Arrays.asList(a, b));
+		gang.schedule();
+
+		assertEquals(REJECTED, gang.await(0));
+		assertFalse(b.isScheduled());
+		assertTrue(a.registered.isEmpty());
+		assertTrue(b.registered.isEmpty());
+	}
+
+	@Test
+	public void rollsBackMembersScheduledDuringRejection() throws Exception {
+		Member a = new Member();
+		Member b = new Member();
+		b.before = () -> a.update(REJECTED);
+		GangAllocation gang = new GangAllocation(Arrays.asList(a, b));
+		gang.schedule();
+
+		assertEquals(REJECTED, gang.await(0));
+		assertEquals(CANCELLED, b.getCurrentState());
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import de.citec.csra.rst.util.IntervalUtils;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.Event;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.HIGH;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.LOW;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.NORMAL;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REJECTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class RejectionCacheTest {
+
+	private final static long BASE = 1000000;
+
+	private RejectionCache cache;
+
+	@Before
+	public void setUp() {
+		this.cache = RejectionCache.getInstance();
+		this.cache.setTimeToLive(RejectionCache.TTL);
+		this.cache.setEnabled(true);
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.cache.setEnabled(false);
+		this.cache.setTimeToLive(RejectionCache.TTL);
+		RemoteAllocationService.getInstance().shutdownNow();
+	}
+
+	@Test
+	public void matchesCoveringRequestsWithOverlappingSlot() {
+		this.cache.record(allocation(NORMAL, 100, 200, "a", "b"));
+		assertTrue(this.cache.isRejected(allocation(NORMAL, 150, 250, "a", "b")));
+		assertTrue(this.cache.isRejected(allocation(LOW, 0, 300, "a", "b", "c")));
+	}
+
+	@Test
+	public void ignoresRequestsThatMayBeGranted() {
+		this.cache.record(allocation(NORMAL, 100, 200, "a", "b"));
+		assertFalse(this.cache.isRejected(allocation(HIGH, 100, 200, "a", "b")));
+		assertFalse(this.cache.isRejected(allocation(NORMAL, 200, 300, "a", "b")));
+		assertFalse(this.cache.isRejected(allocation(NORMAL, 0, 100, "a", "b")));
+		assertFalse(this.cache.isRejected(allocation(NORMAL, 100, 200, "a")));
+	}
+
+	@Test
+	public void countsHits() {
+		long hits = this.cache.getHitCount();
+		this.cache.record(allocation(NORMAL, 100, 200, "a"));
+		this.cache.isRejected(allocation(NORMAL, 100, 200, "a"));
+		this.cache.isRejected(allocation(NORMAL, 300, 400, "a"));
+		assertEquals(hits + 1, this.cache.getHitCount());
+	}
+
+	@Test
+	public void forgetsExpiredRejections() throws InterruptedException {
+		this.cache.setTimeToLive(50);
+		this.cache.record(allocation(NORMAL, 100, 200, "a"));
+		assertTrue(this.cache.isRejected(allocation(NORMAL, 100, 200, "a")));
+		Thread.sleep(100);
+		assertFalse(this.cache.isRejected(allocation(NORMAL, 100, 200, "a")));
+	}
+
+	@Test
+	public void forgetsRejectionsWhenAllocationEnds() {
+		this.cache.record(allocation(NORMAL, 100, 200, "a", "b"));
+		this.cache.handleEvent(event(ResourceAllocation.newBuilder(allocation(NORMAL, 100, 200, "b")).setState(ALLOCATED).build()));
+		assertTrue(this.cache.isRejected(allocation(NORMAL, 100, 200, "a", "b")));
+		this.cache.handleEvent(event(ResourceAllocation.newBuilder(allocation(NORMAL, 100, 200, "b")).setState(RELEASED).build()));
+		assertFalse(this.cache.isRejected(allocation(NORMAL, 100, 200, "a", "b")));
+	}
+
+	@Test
+	public void awaitsReleaseOfRejectedResources() throws InterruptedException {
+		this.cache.record(allocation(NORMAL, 100, 200, "a"));
+		assertTrue(this.cache.awaitFree(0, "b"));
+		assertFalse(this.cache.awaitFree(50, "a"));
+
+		Thread release = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ex) {
+				return;
+			}
+			this.cache.handleEvent(event(ResourceAllocation.newBuilder(allocation(NORMAL, 100, 200, "a")).setState(RELEASED).build()));
+		});
+		release.start();
+		assertTrue(this.cache.awaitFree(2000, "a"));
+		release.join();
+	}
+
+	@Test
+	public void remembersNothingWhenDisabled() {
+		this.cache.setEnabled(false);
+		this.cache.record(allocation(NORMAL, 100, 200, "a"));
+		this.cache.setEnabled(true);
+		assertFalse(this.cache.isRejected(allocation(NORMAL, 100, 200, "a")));
+	}
+
+	private static ResourceAllocation allocation(Priority priority, long begin, long end, String... resources) {
+		ResourceAllocation.Builder builder = ResourceAllocation.newBuilder()
+				.setId("rejected")
+				.setState(REJECTED)
+				.setPriority(priority)
+				.setSlot(IntervalUtils.buildRst(BASE + begin, BASE + end));
+		for (String resource : resources) {
+			builder.addResourceIds(resource);
+		}
+		return builder.build();
+	}
+
+	private static Event event(ResourceAllocation allocation) {
+		return new Event(new Scope(RemoteAllocationService.getScope()), ResourceAllocation.class, allocation);
+	}
+}
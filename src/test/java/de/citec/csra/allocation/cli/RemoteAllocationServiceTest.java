@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class RemoteAllocationServiceTest {
+
+	private final static long TIMEOUT = 2000;
+
+	private RemoteAllocationService service;
+	private Informer<Object> server;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@Before
+	public void setUp() throws RSBException {
+		this.service = RemoteAllocationService.getInstance();
+		this.server = Factory.getInstance().createInformer(new Scope(RemoteAllocationService.getScope()));
+		this.server.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.executor.shutdownNow();
+		this.server.deactivate();
+		this.service.shutdownNow();
+	}
+
+	@Test
+	public void removeHandlerWaitsForRunningNotification() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		AbstractEventHandler handler = new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				calls.incrementAndGet();
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		this.service.addHandler(handler, true);
+		publish("a");
+		assertTrue(entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		Future<?> removal = this.executor.submit(() -> {
+			this.service.removeHandler(handler, true);
+			return null;
+		});
+		try {
+			removal.get(100, TimeUnit.MILLISECONDS);
+			fail("Handler removed while being notified.");
+		} catch (TimeoutException ex) {
+		}
+		release.countDown();
+		removal.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		publish("b");
+		Thread.sleep(100);
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void removeHandlerFromHandlerDoesNotBlock() throws Exception {
+		CountDownLatch removed = new CountDownLatch(1);
+		AbstractEventHandler handler = new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				try {
+					service.removeHandler(this, true);
+					removed.countDown();
+				} catch (InterruptedException | RSBException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		this.service.addHandler(handler, true);
+		publish("a");
+		assertTrue(removed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	private void publish(String id) throws RSBException {
+		this.server.publish(new Event(new Scope(RemoteAllocationService.getScope()), ResourceAllocation.class, ResourceAllocation.newBuilder().setId(id).build()));
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import de.citec.csra.rst.util.IntervalUtils;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REJECTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+import rst.timing.IntervalType.Interval;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class RemoteAllocationTest {
+
+	private final static AtomicInteger IDS = new AtomicInteger();
+	private final static long TIMEOUT = 2000;
+
+	private final BlockingQueue<ResourceAllocation> requests = new LinkedBlockingQueue<>();
+	private Scope scope;
+	private Informer<Object> scheduler;
+	private Listener listener;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		this.scope = new Scope(RemoteAllocationService.getScope());
+		this.scheduler = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.scheduler.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				if (e.getData() instanceof ResourceAllocation && !e.getId().getParticipantId().equals(scheduler.getId())) {
+					requests.add((ResourceAllocation) e.getData());
+				}
+			}
+		}, true);
+		this.listener.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.listener.deactivate();
+		this.scheduler.deactivate();
+		RemoteAllocationService.getInstance().shutdownNow();
+	}
+
+	@Test
+	public void confirmsSlotWithModifiedInterval() throws Exception {
+		RemoteAllocation remote = schedule();
+		remote.extend(500);
+		ResourceAllocation request = this.requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(request);
+		Future<ResourceAllocation> confirmation = remote.getSlotConfirmation();
+		remote.extend(500);
+		Future<ResourceAllocation> coalesced = remote.getSlotConfirmation();
+		assertNull(this.requests.poll(100, TimeUnit.MILLISECONDS));
+
+		Interval clipped = IntervalUtils.buildRst(request.getSlot().getBegin().getTime(), request.getSlot().getEnd().getTime() - 200);
+		reply(ResourceAllocation.newBuilder(request).setSlot(clipped).build());
+		assertEquals(clipped, confirmation.get(TIMEOUT, TimeUnit.MILLISECONDS).getSlot());
+		assertFalse(coalesced.isDone());
+
+		ResourceAllocation followup = this.requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(followup);
+		reply(followup);
+		assertEquals(followup.getSlot(), coalesced.get(TIMEOUT, TimeUnit.MILLISECONDS).getSlot());
+		assertEquals(followup.getSlot(), remote.getSlot());
+	}
+
+	@Test
+	public void confirmsSlotWithRejection() throws Exception {
+		RemoteAllocation remote = schedule();
+		remote.extend(500);
+		ResourceAllocation request = this.requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(request);
+		Future<ResourceAllocation> confirmation = remote.getSlotConfirmation();
+
+		reply(ResourceAllocation.newBuilder(remote.getAllocation()).setState(REJECTED).build());
+		assertEquals(REJECTED, confirmation.get(TIMEOUT, TimeUnit.MILLISECONDS).getState());
+	}
+
+	@Test
+	public void ignoresSnapshotRepliesAndForeignRegressions() throws Exception {
+		RemoteAllocation remote = schedule();
+		reply(ResourceAllocation.newBuilder(remote.getAllocation()).setState(ALLOCATED).build());
+		awaitState(remote, ALLOCATED);
+
+		Informer<Object> other = Factory.getInstance().createInformer(this.scope);
+		other.activate();
+		try {
+			long discarded = remote.getDiscardedCount();
+			Event snapshot = new Event(this.scope, ResourceAllocation.class, ResourceAllocation.newBuilder(remote.getAllocation()).setState(SCHEDULED).build());
+			snapshot.setMethod(RemoteAllocationService.SNAPSHOT);
+			other.publish(snapshot);
+			other.publish(new Event(this.scope, ResourceAllocation.class, ResourceAllocation.newBuilder(remote.getAllocation()).setState(SCHEDULED).build()));
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (remote.getDiscardedCount() < discarded + 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(discarded + 2, remote.getDiscardedCount());
+			assertEquals(ALLOCATED, remote.getCurrentState());
+
+			other.publish(new Event(this.scope, ResourceAllocation.class, ResourceAllocation.newBuilder(remote.getAllocation()).setState(RELEASED).build()));
+			awaitState(remote, RELEASED);
+		} finally {
+			other.deactivate();
+		}
+	}
+
+	private RemoteAllocation schedule() throws Exception {
+		RemoteAllocation remote = new RemoteAllocation(ResourceAllocation.newBuilder()
+				.setId("slot-" + IDS.incrementAndGet())
+				.setSlot(IntervalUtils.buildRelativeRst(1000, 1000))
+				.addResourceIds("res"));
+		remote.setCoalescing(true);
+		remote.schedule();
+		ResourceAllocation request = this.requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(request);
+		reply(ResourceAllocation.newBuilder(request).setState(SCHEDULED).build());
+		awaitState(remote, SCHEDULED);
+		return remote;
+	}
+
+	private void reply(ResourceAllocation allocation) throws RSBException {
+		this.scheduler.publish(new Event(this.scope, ResourceAllocation.class, allocation));
+	}
+
+	private static void awaitState(RemoteAllocation remote, State state) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (remote.getCurrentState() != state && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(state, remote.getCurrentState());
+	}
+}
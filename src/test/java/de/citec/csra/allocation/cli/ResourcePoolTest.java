@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator.SYSTEM;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.FIRST;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.HIGH;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.LOW;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.NORMAL;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ABORTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.CANCELLED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+import rst.timing.IntervalType.Interval;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ResourcePoolTest {
+
+	private final static long TIMEOUT = 2000;
+
+	private static class FakeLease extends RemoteAllocation {
+
+		private FakeLease(ResourceAllocation.Builder builder) {
+			super(builder);
+		}
+
+		@Override
+		public void schedule() {
+		}
+
+		@Override
+		protected void requestState(State newState) {
+			allocationUpdated(ResourceAllocation.newBuilder(getAllocation()).setState(newState).build());
+		}
+
+		@Override
+		protected void requestSlot(Interval interval) {
+		}
+
+		private void update(State state) {
+			allocationUpdated(ResourceAllocation.newBuilder(getAllocation()).setState(state).build());
+		}
+	}
+
+	private static class Recorder implements SchedulerListener {
+
+		private final String name;
+		private final List<String> log;
+
+		private Recorder(String name, List<String> log) {
+			this.name = name;
+			this.log = log;
+		}
+
+		@Override
+		public void allocationUpdated(ResourceAllocation allocation) {
+			synchronized (this.log) {
+				this.log.add(this.name + ":" + allocation.getState());
+				this.log.notifyAll();
+			}
+		}
+	}
+
+	private final List<String> log = new ArrayList<>();
+	private FakeLease lease;
+	private ResourcePool pool;
+
+	@Before
+	public void setUp() {
+		this.pool = new ResourcePool("pool", FIRST, NORMAL, SYSTEM, 10000, 10000, "test:resource") {
+			@Override
+			RemoteAllocation createLease(ResourceAllocation.Builder builder) {
+				lease = new FakeLease(builder);
+				return lease;
+			}
+		};
+	}
+
+	private RemoteAllocation allocate(String name, ResourceAllocation.Priority priority, long duration) throws Exception {
+		RemoteAllocation local = this.pool.allocate(name, priority, duration);
+		local.addSchedulerListener(new Recorder(name, this.log));
+		return local;
+	}
+
+	private void awaitLog(String... entries) throws InterruptedException {
+		List<String> expected = Arrays.asList(entries);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		synchronized (this.log) {
+			while (!this.log.containsAll(expected) && System.currentTimeMillis() < deadline) {
+				this.log.wait(deadline - System.currentTimeMillis());
+			}
+			assertTrue("missing updates in " + this.log, this.log.containsAll(expected));
+		}
+	}
+
+	private List<String> getLog(String name) {
+		List<String> entries = new ArrayList<>();
+		synchronized (this.log) {
+			for (String entry : this.log) {
+				if (entry.startsWith(name + ":")) {
+					entries.add(entry);
+				}
+			}
+		}
+		return entries;
+	}
+
+	@Test
+	public void grantsByPriorityAndArrival() throws Exception {
+		RemoteAllocation low = allocate("low", LOW, 10000);
+		RemoteAllocation first = allocate("first", HIGH, 10000);
+		RemoteAllocation second = allocate("second", HIGH, 10000);
+		low.schedule();
+		first.schedule();
+		second.schedule();
+		awaitLog("low:SCHEDULED", "first:SCHEDULED", "second:SCHEDULED");
+		assertNotNull(this.lease);
+
+		this.lease.update(ALLOCATED);
+		awaitLog("first:ALLOCATED");
+		first.release();
+		awaitLog("first:RELEASED", "second:ALLOCATED");
+		second.release();
+		awaitLog("second:RELEASED", "low:ALLOCATED");
+		low.release();
+		awaitLog("low:RELEASED");
+
+		synchronized (this.log) {
+			assertEquals(Arrays.asList("first:ALLOCATED", "first:RELEASED", "second:ALLOCATED", "second:RELEASED", "low:ALLOCATED", "low:RELEASED"),
+					this.log.subList(3, this.log.size()));
+		}
+	}
+
+	@Test
+	public void deliversUpdatesInDecisionOrder() throws Exception {
+		for (int i = 0; i < 50; i++) {
+			this.log.clear();
+			setUp();
+			RemoteAllocation local = allocate("a" + i, NORMAL, 10000);
+			local.schedule();
+			this.lease.update(ALLOCATED);
+			awaitLog("a" + i + ":ALLOCATED");
+			local.release();
+			awaitLog("a" + i + ":RELEASED");
+			assertEquals(Arrays.asList("a" + i + ":SCHEDULED", "a" + i + ":ALLOCATED", "a" + i + ":RELEASED"), getLog("a" + i));
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void honoursSlotChangesWhileQueued() throws Exception {
+		RemoteAllocation local = allocate("a", NORMAL, 1000);
+		local.schedule();
+		awaitLog("a:SCHEDULED");
+		local.extend(1000);
+		synchronized (this.log) {
+			while (getLog("a").size() < 2) {
+				this.log.wait(TIMEOUT);
+			}
+		}
+		this.lease.update(ALLOCATED);
+		awaitLog("a:ALLOCATED");
+		Interval slot = local.getSlot();
+		assertEquals(2000, slot.getEnd().getTime() - slot.getBegin().getTime());
+		local.release();
+		awaitLog("a:RELEASED");
+	}
+
+	@Test
+	public void endOfLeaseEndsLocalAllocations() throws Exception {
+		RemoteAllocation current = allocate("current", NORMAL, 10000);
+		RemoteAllocation queued = allocate("queued", NORMAL, 10000);
+		current.schedule();
+		queued.schedule();
+		this.lease.update(ALLOCATED);
+		awaitLog("current:ALLOCATED", "queued:SCHEDULED");
+		this.lease.update(ABORTED);
+		awaitLog("current:ABORTED", "queued:CANCELLED");
+		assertEquals(0, this.pool.getQueueLength());
+		assertEquals(RELEASED, this.pool.getLeaseState());
+		assertEquals(CANCELLED, queued.getCurrentState());
+		assertEquals(Arrays.asList(SCHEDULED, ALLOCATED, ABORTED), statesOf("current"));
+	}
+
+	private List<State> statesOf(String name) {
+		List<State> states = new ArrayList<>();
+		for (String entry : getLog(name)) {
+			states.add(State.valueOf(entry.substring(name.length() + 1)));
+		}
+		return states;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class RttEstimatorTest {
+
+	private final static double EPSILON = 1e-9;
+
+	@Test
+	public void usesMaximumWithoutSamples() {
+		RttEstimator estimator = new RttEstimator(10, 1000);
+		assertEquals(1000, estimator.getTimeout());
+		assertEquals(0, estimator.getSampleCount());
+	}
+
+	@Test
+	public void initializesFromFirstSample() {
+		RttEstimator estimator = new RttEstimator(10, 1000);
+		estimator.sample(100);
+		assertEquals(100, estimator.getSmoothedRtt(), EPSILON);
+		assertEquals(50, estimator.getRttVariation(), EPSILON);
+		assertEquals(300, estimator.getTimeout());
+	}
+
+	@Test
+	public void smoothesSubsequentSamples() {
+		RttEstimator estimator = new RttEstimator(10, 1000);
+		estimator.sample(100);
+		estimator.sample(200);
+		assertEquals(112.5, estimator.getSmoothedRtt(), EPSILON);
+		assertEquals(62.5, estimator.getRttVariation(), EPSILON);
+		assertEquals(363, estimator.getTimeout());
+		assertEquals(2, estimator.getSampleCount());
+	}
+
+	@Test
+	public void convergesForConstantRtt() {
+		RttEstimator estimator = new RttEstimator(0, 1000);
+		for (int i = 0; i < 200; i++) {
+			estimator.sample(40);
+		}
+		assertEquals(40, estimator.getSmoothedRtt(), EPSILON);
+		assertEquals(0, estimator.getRttVariation(), 1e-6);
+		assertEquals(40, estimator.getTimeout());
+	}
+
+	@Test
+	public void clampsTimeout() {
+		RttEstimator low = new RttEstimator(10, 1000);
+		low.sample(1);
+		assertEquals(10, low.getTimeout());
+
+		RttEstimator high = new RttEstimator(10, 1000);
+		high.sample(900);
+		assertEquals(1000, high.getTimeout());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesNegativeMinimum() {
+		new RttEstimator(-1, 1000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesMaximumBelowMinimum() {
+		new RttEstimator(100, 10);
+	}
+}
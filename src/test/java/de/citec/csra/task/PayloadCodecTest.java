@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task;
+
+import com.google.protobuf.ByteString;
+import de.citec.csra.task.PayloadCodec.Compression;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import rst.communicationpatterns.TaskStateType.TaskState;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class PayloadCodecTest {
+
+	private final static String TEXT = repeat("all work and no play makes jack a dull boy. ", 200);
+
+	@Test
+	public void roundTripsStrings() {
+		for (Compression compression : Compression.values()) {
+			PayloadCodec codec = new PayloadCodec(compression, 1024);
+			TaskState.Builder task = TaskState.newBuilder();
+			codec.encode(TEXT, task);
+			String schema = task.getWireSchema().toStringUtf8();
+			if (compression == Compression.NONE) {
+				assertEquals(TEXT.length(), task.getPayload().size());
+			} else {
+				assertTrue(schema.endsWith("+" + compression.name().toLowerCase()));
+				assertTrue(task.getPayload().size() < TEXT.length());
+			}
+			assertEquals(TEXT, codec.decode(task.getPayload(), task.getWireSchema()));
+		}
+	}
+
+	@Test
+	public void compressesOnlyAboveThreshold() {
+		PayloadCodec codec = new PayloadCodec(Compression.LZ4, TEXT.length() + 1);
+		TaskState.Builder task = TaskState.newBuilder();
+		codec.encode(TEXT, task);
+		assertEquals(TEXT.length(), task.getPayload().size());
+		assertEquals(TEXT, codec.decode(task.getPayload(), task.getWireSchema()));
+	}
+
+	@Test
+	public void roundTripsRawBytes() {
+		byte[] data = TEXT.getBytes();
+		PayloadCodec codec = new PayloadCodec(Compression.ZSTD, 0);
+		TaskState.Builder task = TaskState.newBuilder();
+		codec.encode(ByteBuffer.wrap(data), task);
+		assertEquals(data.length, task.getPayload().size());
+		assertEquals(ByteBuffer.wrap(data), codec.decode(task.getPayload(), task.getWireSchema()));
+	}
+
+	@Test
+	public void serializesByteArrays() {
+		PayloadCodec codec = new PayloadCodec(Compression.NONE, 0);
+		TaskState.Builder task = TaskState.newBuilder();
+		codec.encode(TEXT.getBytes(), task);
+		assertNotEquals("bytes", task.getWireSchema().toStringUtf8());
+	}
+
+	@Test
+	public void refusesMissingHeader() {
+		for (Compression compression : new Compression[]{Compression.LZ4, Compression.ZSTD}) {
+			TaskState.Builder task = compressed(compression);
+			assertRefused(new PayloadCodec(), task.getPayload().substring(0, 3), task.getWireSchema());
+		}
+	}
+
+	@Test
+	public void refusesInvalidSize() {
+		for (Compression compression : new Compression[]{Compression.LZ4, Compression.ZSTD}) {
+			TaskState.Builder task = compressed(compression);
+			assertRefused(new PayloadCodec(), withSize(task.getPayload(), -1), task.getWireSchema());
+			assertRefused(new PayloadCodec(), withSize(task.getPayload(), Integer.MAX_VALUE), task.getWireSchema());
+			assertRefused(new PayloadCodec(Compression.NONE, 0, TEXT.length() - 1), task.getPayload(), task.getWireSchema());
+			assertEquals(TEXT, new PayloadCodec(Compression.NONE, 0, TEXT.length()).decode(task.getPayload(), task.getWireSchema()));
+		}
+	}
+
+	@Test
+	public void refusesLengthMismatch() {
+		for (Compression compression : new Compression[]{Compression.LZ4, Compression.ZSTD}) {
+			TaskState.Builder task = compressed(compression);
+			assertRefused(new PayloadCodec(), withSize(task.getPayload(), TEXT.length() + 1), task.getWireSchema());
+			assertRefused(new PayloadCodec(), withSize(task.getPayload(), TEXT.length() - 1), task.getWireSchema());
+		}
+	}
+
+	@Test
+	public void refusesTruncatedData() {
+		for (Compression compression : new Compression[]{Compression.LZ4, Compression.ZSTD}) {
+			TaskState.Builder task = compressed(compression);
+			ByteString payload = task.getPayload();
+			assertRefused(new PayloadCodec(), payload.substring(0, payload.size() / 2), task.getWireSchema());
+		}
+	}
+
+	private static TaskState.Builder compressed(Compression compression) {
+		TaskState.Builder task = TaskState.newBuilder();
+		new PayloadCodec(compression, 0).encode(TEXT, task);
+		assertNotEquals("utf-8-string", task.getWireSchema().toStringUtf8());
+		return task;
+	}
+
+	private static ByteString withSize(ByteString payload, int size) {
+		ByteBuffer header = ByteBuffer.allocate(4).putInt(size);
+		header.flip();
+		return ByteString.copyFrom(header).concat(payload.substring(4));
+	}
+
+	private static void assertRefused(PayloadCodec codec, ByteString payload, ByteString schema) {
+		try {
+			codec.decode(payload, schema);
+			fail("Malformed payload decoded.");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	private static String repeat(String s, int n) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			b.append(s);
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.cli;
+
+import com.google.protobuf.ByteString;
+import de.citec.csra.rst.util.SerializationService;
+import de.citec.csra.task.TaskProxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import static rst.communicationpatterns.TaskStateType.TaskState.Origin.HANDLER;
+import static rst.communicationpatterns.TaskStateType.TaskState.Origin.SUBMITTER;
+import rst.communicationpatterns.TaskStateType.TaskState.State;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.INITIATED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class RemoteTaskTest {
+
+	private final static AtomicInteger SCOPES = new AtomicInteger();
+	private final static long TIMEOUT = 2000;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private Scope scope;
+	private Informer<Object> handler;
+	private Listener listener;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		TaskProxy.registerConverter();
+		this.scope = new Scope("/test/remote/" + SCOPES.incrementAndGet());
+		this.handler = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.handler.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				TaskState task = (TaskState) e.getData();
+				if (task.getOrigin().equals(SUBMITTER) && task.getState().equals(INITIATED)) {
+					try {
+						reply(e, ACCEPTED);
+						reply(e, COMPLETED);
+					} catch (RSBException ex) {
+						throw new IllegalStateException(ex);
+					}
+				}
+			}
+		}, true);
+		this.listener.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.executor.shutdownNow();
+		this.listener.deactivate();
+		this.handler.deactivate();
+	}
+
+	@Test
+	public void returnsResultCompletedRightAfterAcceptance() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			Future<?> result = this.executor.submit(new RemoteTask<>(this.scope.toString(), "task", TIMEOUT));
+			assertEquals("done", result.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	private void reply(Event cause, State state) throws RSBException {
+		TaskState.Builder task = TaskState.newBuilder((TaskState) cause.getData()).setOrigin(HANDLER).setState(state);
+		if (state == COMPLETED) {
+			task.setPayload(ByteString.copyFromUtf8("done")).setWireSchema(SerializationService.UTF8);
+		}
+		Event e = new Event(this.scope, TaskState.class, task.build());
+		e.addCause(cause.getId());
+		this.handler.publish(e);
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.cli;
+
+import com.google.protobuf.ByteString;
+import de.citec.csra.rst.util.SerializationService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import static rst.communicationpatterns.TaskStateType.TaskState.Origin.HANDLER;
+import static rst.communicationpatterns.TaskStateType.TaskState.Origin.SUBMITTER;
+import rst.communicationpatterns.TaskStateType.TaskState.State;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORT;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.INITIATED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.REJECTED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskPipelineTest {
+
+	private final static AtomicInteger SCOPES = new AtomicInteger();
+	private final static long TIMEOUT = 2000;
+
+	private final BlockingQueue<Event> received = new LinkedBlockingQueue<>();
+	private Scope scope;
+	private Informer<Object> handler;
+	private Listener listener;
+	private TaskPipeline pipeline;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		this.scope = new Scope("/test/pipeline/" + SCOPES.incrementAndGet());
+		this.pipeline = new TaskPipeline(TIMEOUT);
+		this.handler = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.handler.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				if (e.getData() instanceof TaskState && ((TaskState) e.getData()).getOrigin().equals(SUBMITTER)) {
+					received.add(e);
+				}
+			}
+		}, true);
+		this.listener.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.pipeline.close();
+		this.listener.deactivate();
+		this.handler.deactivate();
+	}
+
+	@Test
+	public void keepsTasksInFlight() throws Exception {
+		List<TaskPipeline.Submission> submissions = new ArrayList<>();
+		List<Event> initiated = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			submissions.add(this.pipeline.submit(this.scope.toString(), "task-" + i));
+		}
+		for (int i = 0; i < 4; i++) {
+			Event e = next();
+			assertEquals(INITIATED, ((TaskState) e.getData()).getState());
+			initiated.add(e);
+		}
+		assertEquals(4, this.pipeline.getPendingCount());
+
+		for (int i = initiated.size() - 1; i >= 0; i--) {
+			TaskState task = (TaskState) initiated.get(i).getData();
+			reply(initiated.get(i), ACCEPTED, null);
+			reply(initiated.get(i), COMPLETED, "result-" + task.getPayload().toStringUtf8());
+		}
+		for (int i = 0; i < submissions.size(); i++) {
+			assertEquals(ACCEPTED, submissions.get(i).getAcceptance().get(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertEquals("result-task-" + i, submissions.get(i).getResult().get(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(0, this.pipeline.getPendingCount());
+	}
+
+	@Test
+	public void failsRejectedTasks() throws Exception {
+		TaskPipeline.Submission submission = this.pipeline.submit(this.scope.toString(), "task");
+		reply(next(), REJECTED, "busy");
+		assertFailure(submission, RuntimeException.class);
+		assertEquals(0, this.pipeline.getPendingCount());
+	}
+
+	@Test
+	public void abortsTasksNotAcceptedInTime() throws Exception {
+		this.pipeline.close();
+		this.pipeline = new TaskPipeline(50);
+		TaskPipeline.Submission submission = this.pipeline.submit(this.scope.toString(), "task");
+		Event initiated = next();
+		assertFailure(submission, TimeoutException.class);
+		Event abort = next();
+		assertEquals(ABORT, ((TaskState) abort.getData()).getState());
+		assertTrue(abort.getCauses().contains(initiated.getId()));
+		assertEquals(0, this.pipeline.getPendingCount());
+	}
+
+	@Test
+	public void failsTasksInFlightWhenClosed() throws Exception {
+		TaskPipeline.Submission submission = this.pipeline.submit(this.scope.toString(), "task");
+		next();
+		this.pipeline.close();
+		assertFailure(submission, IllegalStateException.class);
+	}
+
+	private Event next() throws InterruptedException {
+		Event e = this.received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(e);
+		return e;
+	}
+
+	private void reply(Event cause, State state, String payload) throws RSBException {
+		TaskState.Builder task = TaskState.newBuilder((TaskState) cause.getData()).setOrigin(HANDLER).setState(state);
+		if (payload != null) {
+			task.setPayload(ByteString.copyFromUtf8(payload)).setWireSchema(SerializationService.UTF8);
+		}
+		Event e = new Event(this.scope, TaskState.class, task.build());
+		e.addCause(cause.getId());
+		this.handler.publish(e);
+	}
+
+	private static void assertFailure(TaskPipeline.Submission submission, Class<? extends Exception> type) throws InterruptedException, TimeoutException {
+		try {
+			submission.getResult().get(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("Task did not fail.");
+		} catch (ExecutionException ex) {
+			assertTrue(type.isInstance(ex.getCause()));
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class PooledTaskFactoryTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final List<Instance> instances = new ArrayList<>();
+
+	private class Instance implements ReusableLocalTask {
+
+		private final AtomicInteger aborts = new AtomicInteger();
+		private volatile Object description;
+		private volatile CountDownLatch release = new CountDownLatch(0);
+		private volatile CountDownLatch started = new CountDownLatch(1);
+
+		private Instance() {
+			instances.add(this);
+		}
+
+		@Override
+		public void reset(Object description) throws IllegalArgumentException {
+			if (description == null) {
+				throw new IllegalArgumentException("Missing description.");
+			}
+			this.description = description;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			this.started.countDown();
+			this.release.await();
+			return this.description;
+		}
+
+		@Override
+		public void abort(Object description) throws Exception {
+			this.aborts.incrementAndGet();
+			this.release.countDown();
+		}
+	}
+
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Test
+	public void reusesInstances() throws Exception {
+		PooledTaskFactory factory = new PooledTaskFactory(Instance::new, 1);
+		assertEquals("a", factory.newLocalTask("a").call());
+		assertEquals("b", factory.newLocalTask("b").call());
+		assertEquals(1, this.instances.size());
+		assertEquals(1, factory.getAvailable());
+	}
+
+	@Test
+	public void rejectsUnsupportedDescription() {
+		PooledTaskFactory factory = new PooledTaskFactory(Instance::new, 1);
+		try {
+			factory.newLocalTask(null);
+			fail("Unsupported description accepted.");
+		} catch (IllegalArgumentException ex) {
+			assertEquals(1, factory.getAvailable());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void doesNotBlockWhenExhausted() throws Exception {
+		PooledTaskFactory factory = new PooledTaskFactory(Instance::new, 1);
+		Instance instance = this.instances.get(0);
+		instance.release = new CountDownLatch(1);
+		Future<?> first = this.executor.submit(factory.newLocalTask("a"));
+		instance.started.await();
+
+		LocalTask second = factory.newLocalTask("b");
+		Future<?> waiting = this.executor.submit(second);
+		Thread.sleep(50);
+		assertFalse(waiting.isDone());
+
+		instance.release.countDown();
+		assertEquals("a", first.get());
+		assertEquals("b", waiting.get());
+		assertEquals(1, factory.getWaitCount());
+	}
+
+	@Test
+	public void abortBeforeExecutionReturnsInstance() throws Exception {
+		PooledTaskFactory factory = new PooledTaskFactory(Instance::new, 1);
+		LocalTask task = factory.newLocalTask("a");
+		assertEquals(0, factory.getAvailable());
+		task.abort("a");
+		assertEquals(1, factory.getAvailable());
+		try {
+			task.call();
+			fail("Aborted task executed.");
+		} catch (CancellationException ex) {
+			assertEquals(1, factory.getAvailable());
+		}
+		assertEquals(0, this.instances.get(0).aborts.get());
+	}
+
+	@Test(timeout = 5000)
+	public void abortReachesRunningInstance() throws Exception {
+		PooledTaskFactory factory = new PooledTaskFactory(Instance::new, 1);
+		Instance instance = this.instances.get(0);
+		instance.release = new CountDownLatch(1);
+		LocalTask task = factory.newLocalTask("a");
+		Future<?> running = this.executor.submit(task);
+		instance.started.await();
+		task.abort("a");
+		running.get();
+		assertEquals(1, instance.aborts.get());
+		assertEquals(1, factory.getAvailable());
+	}
+
+	@Test(timeout = 5000)
+	public void lateAbortDoesNotReachNextLease() throws Exception {
+		PooledTaskFactory factory = new PooledTaskFactory(Instance::new, 1);
+		Instance instance = this.instances.get(0);
+		LocalTask first = factory.newLocalTask("a");
+		assertEquals("a", first.call());
+
+		instance.release = new CountDownLatch(1);
+		instance.started = new CountDownLatch(1);
+		Future<?> second = this.executor.submit(factory.newLocalTask("b"));
+		instance.started.await();
+		first.abort("a");
+		assertEquals(0, instance.aborts.get());
+		assertFalse(second.isDone());
+
+		instance.release.countDown();
+		assertEquals("b", second.get(1, TimeUnit.SECONDS));
+		assertEquals(1, factory.getAvailable());
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import com.google.protobuf.ByteString;
+import de.citec.csra.rst.util.SerializationService;
+import de.citec.csra.task.TaskProxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.EventId;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import rst.communicationpatterns.TaskStateType.TaskState.State;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORT;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskDeduplicatorTest {
+
+	private final static AtomicInteger SCOPES = new AtomicInteger();
+	private final static long TIMEOUT = 2000;
+
+	private final Map<EventId, List<State>> received = new ConcurrentHashMap<>();
+	private final List<TaskProxy> proxies = new ArrayList<>();
+	private Scope scope;
+	private Informer<Object> client;
+	private Informer<Object> handler;
+	private Listener listener;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		TaskProxy.registerConverter();
+		this.scope = new Scope("/test/dedup/" + SCOPES.incrementAndGet());
+		this.client = Factory.getInstance().createInformer(this.scope);
+		this.handler = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.client.activate();
+		this.handler.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				if (e.getId().getParticipantId().equals(handler.getId())) {
+					for (EventId cause : e.getCauses()) {
+						received.computeIfAbsent(cause, (c) -> Collections.synchronizedList(new ArrayList<>())).add(((TaskState) e.getData()).getState());
+					}
+				}
+			}
+		}, true);
+		this.listener.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.proxies.forEach(TaskProxy::deactivate);
+		this.listener.deactivate();
+		this.handler.deactivate();
+		this.client.deactivate();
+	}
+
+	@Test
+	public void hashesContentOnlyIfEnabled() throws RSBException {
+		TaskDeduplicator dedup = new TaskDeduplicator();
+		Event explicit = initiate("a", "key");
+		assertEquals("key", dedup.getKey(task("a"), explicit));
+		assertNull(dedup.getKey(task("a"), initiate("a", null)));
+
+		dedup.setContentHashing(true);
+		String key = dedup.getKey(task("a"), initiate("a", null));
+		assertNotNull(key);
+		assertEquals(key, dedup.getKey(task("a"), initiate("a", null)));
+		assertNotEquals(key, dedup.getKey(task("b"), initiate("b", null)));
+		assertEquals("key", dedup.getKey(task("a"), explicit));
+	}
+
+	@Test
+	public void attachesToRunningExecution() throws Exception {
+		TaskDeduplicator dedup = new TaskDeduplicator();
+		TaskProxy original = proxy(initiate("a", "key"));
+		Event cause = initiate("a", "key");
+		TaskProxy duplicate = proxy(cause);
+
+		assertFalse(dedup.attach("key", original));
+		assertTrue(dedup.attach("key", duplicate));
+		assertNull(dedup.complete("key", COMPLETED, "done"));
+		awaitStates(cause, ACCEPTED, COMPLETED);
+		assertEquals(1, dedup.getHitCount());
+	}
+
+	@Test
+	public void cachesResultsOnlyForExplicitKeys() throws Exception {
+		TaskDeduplicator dedup = new TaskDeduplicator();
+		dedup.setContentHashing(true);
+		Event hashed = initiate("a", null);
+		String key = dedup.getKey(task("a"), hashed);
+		assertFalse(dedup.attach(key, proxy(hashed)));
+		dedup.complete(key, COMPLETED, "done");
+		assertFalse(dedup.attach(key, proxy(initiate("a", null))));
+
+		assertFalse(dedup.attach("key", proxy(initiate("a", "key"))));
+		dedup.complete("key", COMPLETED, "done");
+		Event cause = initiate("a", "key");
+		assertTrue(dedup.attach("key", proxy(cause)));
+		awaitStates(cause, ACCEPTED, COMPLETED);
+	}
+
+	@Test
+	public void abortsDuplicateIndependently() throws Exception {
+		TaskDeduplicator dedup = new TaskDeduplicator();
+		assertFalse(dedup.attach("key", proxy(initiate("a", "key"))));
+		Event aborting = initiate("a", "key");
+		Event remaining = initiate("a", "key");
+		assertTrue(dedup.attach("key", proxy(aborting)));
+		assertTrue(dedup.attach("key", proxy(remaining)));
+		awaitStates(aborting, ACCEPTED);
+
+		abort(aborting);
+		awaitStates(aborting, ACCEPTED, ABORTED);
+		assertNull(dedup.complete("key", COMPLETED, "done"));
+		awaitStates(remaining, ACCEPTED, COMPLETED);
+		Thread.sleep(100);
+		assertEquals(Arrays.asList(ACCEPTED, ABORTED), this.received.get(aborting.getId()));
+	}
+
+	@Test
+	public void executesAgainForDuplicatesAfterAbort() throws Exception {
+		TaskDeduplicator dedup = new TaskDeduplicator();
+		assertFalse(dedup.attach("key", proxy(initiate("a", "key"))));
+		TaskProxy next = proxy(initiate("a", "key"));
+		Event remaining = initiate("a", "key");
+		assertTrue(dedup.attach("key", next));
+		assertTrue(dedup.attach("key", proxy(remaining)));
+
+		assertSame(next, dedup.complete("key", ABORTED, null));
+		assertNull(dedup.complete("key", COMPLETED, "done"));
+		awaitStates(remaining, ACCEPTED, COMPLETED);
+	}
+
+	private TaskState task(String payload) {
+		return TaskState.newBuilder()
+				.setPayload(ByteString.copyFromUtf8(payload))
+				.setWireSchema(SerializationService.UTF8)
+				.build();
+	}
+
+	private Event initiate(String payload, String key) throws RSBException {
+		Event e = new Event(this.scope, TaskState.class, task(payload));
+		if (key != null) {
+			e.getMetaData().setUserInfo(TaskProxy.DEDUPLICATION_KEY, key);
+		}
+		return this.client.publish(e);
+	}
+
+	private void abort(Event cause) throws RSBException {
+		Event e = new Event(this.scope, TaskState.class, TaskState.newBuilder((TaskState) cause.getData()).setState(ABORT).build());
+		e.addCause(cause.getId());
+		this.client.publish(e);
+	}
+
+	private TaskProxy proxy(Event cause) throws RSBException {
+		TaskProxy proxy = new TaskProxy((TaskState) cause.getData(), cause, this.handler);
+		this.proxies.add(proxy);
+		return proxy;
+	}
+
+	private void awaitStates(Event cause, State... expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		List<State> states = Collections.emptyList();
+		while (System.currentTimeMillis() < deadline) {
+			states = this.received.getOrDefault(cause.getId(), Collections.emptyList());
+			if (states.size() >= expected.length) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList(expected), new ArrayList<>(states));
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import com.google.protobuf.ByteString;
+import de.citec.csra.rst.util.SerializationService;
+import de.citec.csra.task.TaskProxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.EventId;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import rst.communicationpatterns.TaskStateType.TaskState.State;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORT;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.REJECTED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskExecutionMonitorTest {
+
+	private final static AtomicInteger SCOPES = new AtomicInteger();
+	private final static long TIMEOUT = 2000;
+
+	private final Map<EventId, List<State>> received = new ConcurrentHashMap<>();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private Scope scope;
+	private Informer<Object> client;
+	private Informer<Object> handler;
+	private Listener listener;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		TaskProxy.registerConverter();
+		this.scope = new Scope("/test/monitor/" + SCOPES.incrementAndGet());
+		this.client = Factory.getInstance().createInformer(this.scope);
+		this.handler = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.client.activate();
+		this.handler.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				if (e.getId().getParticipantId().equals(handler.getId())) {
+					for (EventId cause : e.getCauses()) {
+						received.computeIfAbsent(cause, (c) -> Collections.synchronizedList(new ArrayList<>())).add(((TaskState) e.getData()).getState());
+					}
+				}
+			}
+		}, true);
+		this.listener.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.executor.shutdownNow();
+		this.listener.deactivate();
+		this.handler.deactivate();
+		this.client.deactivate();
+	}
+
+	@Test
+	public void answersShortTasksOnFastPath() throws Exception {
+		Event cause = initiate();
+		execute(cause, 1000, () -> "done");
+		awaitStates(cause, COMPLETED);
+	}
+
+	@Test
+	public void acceptsTasksExceedingFastPathBudget() throws Exception {
+		Event cause = initiate();
+		execute(cause, 20, () -> {
+			Thread.sleep(200);
+			return "done";
+		});
+		awaitStates(cause, ACCEPTED, COMPLETED);
+	}
+
+	@Test
+	public void abortsEscalatedTask() throws Exception {
+		Event cause = initiate();
+		execute(cause, 20, () -> {
+			Thread.sleep(TIMEOUT * 10);
+			return "done";
+		});
+		awaitStates(cause, ACCEPTED);
+		abort(cause);
+		awaitStates(cause, ACCEPTED, ABORTED);
+	}
+
+	@Test
+	public void escalatesTasksIndependently() throws Exception {
+		List<Event> causes = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			Event cause = initiate();
+			causes.add(cause);
+			execute(cause, 20, () -> {
+				Thread.sleep(300);
+				return "done";
+			});
+		}
+		for (Event cause : causes) {
+			awaitStates(cause, ACCEPTED, COMPLETED);
+		}
+	}
+
+	@Test
+	public void rejectsExpiredTasksBeforeExecution() throws Exception {
+		Event cause = initiate(System.currentTimeMillis() - 1);
+		execute(cause, 0, () -> "done");
+		awaitStates(cause, REJECTED);
+	}
+
+	@Test
+	public void skipsTasksAbortedWhileQueued() throws Exception {
+		Event cause = initiate();
+		TaskProxy proxy = new TaskProxy((TaskState) cause.getData(), cause, this.handler);
+		TaskExecutionMonitor monitor = new TaskExecutionMonitor(proxy, (description) -> () -> "done");
+		monitor.awaitExecution();
+		abort(cause);
+		Thread.sleep(100);
+		monitor.call();
+		awaitStates(cause, ABORTED);
+	}
+
+	private void execute(Event cause, long budget, LocalTask task) throws RSBException {
+		TaskProxy proxy = new TaskProxy((TaskState) cause.getData(), cause, this.handler);
+		TaskExecutionMonitor monitor = new TaskExecutionMonitor(proxy, (description) -> task);
+		monitor.setFastPath(budget);
+		this.executor.submit(monitor);
+	}
+
+	private Event initiate() throws RSBException {
+		return initiate(Long.MAX_VALUE);
+	}
+
+	private Event initiate(long deadline) throws RSBException {
+		TaskState task = TaskState.newBuilder()
+				.setPayload(ByteString.copyFromUtf8("task"))
+				.setWireSchema(SerializationService.UTF8)
+				.build();
+		Event e = new Event(this.scope, TaskState.class, task);
+		if (deadline != Long.MAX_VALUE) {
+			e.getMetaData().setUserInfo(TaskProxy.DEADLINE, String.valueOf(deadline));
+		}
+		return this.client.publish(e);
+	}
+
+	private void abort(Event cause) throws RSBException {
+		Event e = new Event(this.scope, TaskState.class, TaskState.newBuilder((TaskState) cause.getData()).setState(ABORT).build());
+		e.addCause(cause.getId());
+		this.client.publish(e);
+	}
+
+	private void awaitStates(Event cause, State... expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		List<State> states = Collections.emptyList();
+		while (System.currentTimeMillis() < deadline) {
+			states = this.received.getOrDefault(cause.getId(), Collections.emptyList());
+			if (states.size() >= expected.length) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList(expected), new ArrayList<>(states));
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import com.google.protobuf.ByteString;
+import de.citec.csra.rst.util.SerializationService;
+import de.citec.csra.task.TaskProxy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORT;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ABORTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.ACCEPTED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.COMPLETED;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.RESULT_AVAILABLE;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskGraphHandlerTest {
+
+	private final static AtomicInteger SCOPES = new AtomicInteger();
+	private final static long TIMEOUT = 2000;
+
+	private final BlockingQueue<TaskState> received = new LinkedBlockingQueue<>();
+	private final TaskGraphHandler graphs = new TaskGraphHandler(null);
+	private Scope scope;
+	private Informer<Object> client;
+	private Informer<Object> handler;
+	private Listener listener;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		TaskProxy.registerConverter();
+		this.scope = new Scope("/test/graph/" + SCOPES.incrementAndGet());
+		this.client = Factory.getInstance().createInformer(this.scope);
+		this.handler = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.client.activate();
+		this.handler.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				if (e.getId().getParticipantId().equals(handler.getId())) {
+					received.add((TaskState) e.getData());
+				}
+			}
+		}, true);
+		this.listener.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.listener.deactivate();
+		this.handler.deactivate();
+		this.client.deactivate();
+	}
+
+	@Test
+	public void reportsProgressOfParallelNodes() throws Exception {
+		this.graphs.addFactory("work", (description) -> () -> description);
+		StringBuilder graph = new StringBuilder();
+		Set<String> nodes = new HashSet<>();
+		for (int i = 0; i < 16; i++) {
+			graph.append("n").append(i).append("=work($);");
+			nodes.add("n" + i);
+		}
+		initiate(graph.toString(), true);
+
+		assertEquals(ACCEPTED, next().getState());
+		Set<String> reported = new HashSet<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			TaskState progress = next();
+			assertEquals(RESULT_AVAILABLE, progress.getState());
+			reported.add(progress.getPayload().toStringUtf8());
+		}
+		assertEquals(nodes, reported);
+		assertEquals(COMPLETED, next().getState());
+	}
+
+	@Test
+	public void reportsAbortEvenIfNodesIgnoreInterrupts() throws Exception {
+		this.graphs.addFactory("stubborn", (description) -> () -> {
+			long end = System.currentTimeMillis() + 300;
+			while (System.currentTimeMillis() < end) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException ex) {
+//					ignored on purpose
+				}
+			}
+			return description;
+		});
+		Event cause = initiate("a=stubborn($)", false);
+		assertEquals(ACCEPTED, next().getState());
+		abort(cause);
+		assertEquals(ABORTED, next().getState());
+	}
+
+	private Event initiate(String graph, boolean progress) throws Exception {
+		TaskState task = TaskState.newBuilder()
+				.setPayload(ByteString.copyFromUtf8("task"))
+				.setWireSchema(SerializationService.UTF8)
+				.build();
+		Event e = new Event(this.scope, TaskState.class, task);
+		e.getMetaData().setUserInfo(TaskProxy.GRAPH, graph);
+		e.getMetaData().setUserInfo(TaskProxy.GRAPH_PROGRESS, String.valueOf(progress));
+		Event cause = this.client.publish(e);
+		this.graphs.handle(task, cause, this.handler);
+		return cause;
+	}
+
+	private void abort(Event cause) throws RSBException {
+		Event e = new Event(this.scope, TaskState.class, TaskState.newBuilder((TaskState) cause.getData()).setState(ABORT).build());
+		e.addCause(cause.getId());
+		this.client.publish(e);
+	}
+
+	private TaskState next() throws InterruptedException {
+		TaskState state = this.received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(state);
+		return state;
+	}
+}
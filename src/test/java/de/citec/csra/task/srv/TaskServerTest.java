@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.task.srv;
+
+import com.google.protobuf.ByteString;
+import de.citec.csra.rst.util.SerializationService;
+import de.citec.csra.task.TaskProxy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import rsb.AbstractEventHandler;
+import rsb.Event;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.Listener;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.TaskStateType.TaskState;
+import static rst.communicationpatterns.TaskStateType.TaskState.Origin.HANDLER;
+import static rst.communicationpatterns.TaskStateType.TaskState.State.REJECTED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TaskServerTest {
+
+	private final static AtomicInteger SCOPES = new AtomicInteger();
+	private final static long TIMEOUT = 2000;
+
+	private final BlockingQueue<Event> received = new LinkedBlockingQueue<>();
+	private final AtomicBoolean handled = new AtomicBoolean();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private Scope scope;
+	private Informer<Object> client;
+	private Listener listener;
+	private TaskServer server;
+
+	@Before
+	public void setUp() throws RSBException, InterruptedException {
+		TaskProxy.registerConverter();
+		this.scope = new Scope("/test/server/" + SCOPES.incrementAndGet());
+		this.server = new TaskServer(this.scope.toString(), (t, e, i) -> this.handled.set(true));
+		this.server.activate();
+		this.executor.submit(() -> {
+			this.server.listen();
+			return null;
+		});
+		this.client = Factory.getInstance().createInformer(this.scope);
+		this.listener = Factory.getInstance().createListener(this.scope);
+		this.client.activate();
+		this.listener.addHandler(new AbstractEventHandler() {
+			@Override
+			public void handleEvent(Event e) {
+				if (((TaskState) e.getData()).getOrigin().equals(HANDLER)) {
+					received.add(e);
+				}
+			}
+		}, true);
+		this.listener.activate();
+	}
+
+	@After
+	public void tearDown() throws RSBException, InterruptedException {
+		this.executor.shutdownNow();
+		this.listener.deactivate();
+		this.client.deactivate();
+		this.server.deactivate();
+	}
+
+	@Test
+	public void rejectsExpiredTasks() throws Exception {
+		TaskState task = TaskState.newBuilder()
+				.setPayload(ByteString.copyFromUtf8("task"))
+				.setWireSchema(SerializationService.UTF8)
+				.build();
+		Event e = new Event(this.scope, TaskState.class, task);
+		e.getMetaData().setUserInfo(TaskProxy.DEADLINE, String.valueOf(System.currentTimeMillis() - 1));
+		Event cause = this.client.publish(e);
+
+		Event reply = this.received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(reply);
+		assertEquals(REJECTED, ((TaskState) reply.getData()).getState());
+		assertTrue(reply.getCauses().contains(cause.getId()));
+		assertFalse(this.handled.get());
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ListenerMailboxTest {
+
+	@Test
+	public void deliversInOrder() throws InterruptedException {
+		int n = 1000;
+		List<Integer> received = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch(n);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ListenerMailbox<Integer> mailbox = new ListenerMailbox<>((i) -> {
+			synchronized (received) {
+				received.add(i);
+			}
+			done.countDown();
+		}, executor, n);
+		for (int i = 0; i < n; i++) {
+			mailbox.accept(i);
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		executor.shutdown();
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, (int) received.get(i));
+		}
+	}
+
+	@Test
+	public void dropsOldestWhenFull() {
+		Queue<Runnable> tasks = new LinkedList<>();
+		List<Integer> received = new ArrayList<>();
+		ListenerMailbox<Integer> mailbox = new ListenerMailbox<>(received::add, tasks::add, 2);
+		mailbox.accept(1);
+		mailbox.accept(2);
+		mailbox.accept(3);
+		assertEquals(1, tasks.size());
+		assertEquals(2, mailbox.size());
+		assertEquals(1, mailbox.getDroppedCount());
+		tasks.poll().run();
+		assertEquals(Arrays.asList(2, 3), received);
+		assertEquals(0, mailbox.size());
+	}
+
+	@Test
+	public void survivesRejectingExecutor() {
+		List<Integer> received = new ArrayList<>();
+		boolean[] reject = {true};
+		ListenerMailbox<Integer> mailbox = new ListenerMailbox<>(received::add, (r) -> {
+			if (reject[0]) {
+				throw new RejectedExecutionException();
+			}
+			r.run();
+		});
+		mailbox.accept(1);
+		assertEquals(1, mailbox.getDroppedCount());
+		reject[0] = false;
+		mailbox.accept(2);
+		assertEquals(Arrays.asList(2), received);
+	}
+}
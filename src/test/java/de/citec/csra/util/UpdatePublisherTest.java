@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class UpdatePublisherTest {
+
+	private static class Recorder<T> implements Subscriber<T> {
+
+		private final List<T> received = new ArrayList<>();
+		private Subscription subscription;
+		private Throwable error;
+		private boolean completed;
+
+		@Override
+		public void onSubscribe(Subscription s) {
+			this.subscription = s;
+		}
+
+		@Override
+		public void onNext(T t) {
+			this.received.add(t);
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			this.error = t;
+		}
+
+		@Override
+		public void onComplete() {
+			this.completed = true;
+		}
+	}
+
+	@Test
+	public void respectsDemand() {
+		UpdatePublisher<Integer> publisher = new UpdatePublisher<>();
+		Recorder<Integer> recorder = new Recorder<>();
+		publisher.subscribe(recorder);
+		publisher.accept(1);
+		publisher.accept(2);
+		publisher.accept(3);
+		assertTrue(recorder.received.isEmpty());
+		recorder.subscription.request(2);
+		assertEquals(Arrays.asList(1, 2), recorder.received);
+		recorder.subscription.request(5);
+		publisher.accept(4);
+		assertEquals(Arrays.asList(1, 2, 3, 4), recorder.received);
+	}
+
+	@Test
+	public void dropsOldestBeyondCapacity() {
+		UpdatePublisher<Integer> publisher = new UpdatePublisher<>(2);
+		Recorder<Integer> recorder = new Recorder<>();
+		publisher.subscribe(recorder);
+		for (int i = 0; i < 5; i++) {
+			publisher.accept(i);
+		}
+		recorder.subscription.request(Long.MAX_VALUE);
+		assertEquals(Arrays.asList(3, 4), recorder.received);
+	}
+
+	@Test
+	public void completesAfterBufferedUpdates() {
+		UpdatePublisher<Integer> publisher = new UpdatePublisher<>();
+		Recorder<Integer> recorder = new Recorder<>();
+		publisher.subscribe(recorder);
+		publisher.accept(1);
+		publisher.complete();
+		assertFalse(recorder.completed);
+		recorder.subscription.request(1);
+		assertEquals(Arrays.asList(1), recorder.received);
+		assertTrue(recorder.completed);
+
+		Recorder<Integer> late = new Recorder<>();
+		publisher.subscribe(late);
+		assertTrue(late.completed);
+	}
+
+	@Test
+	public void signalsErrorOnInvalidDemand() {
+		UpdatePublisher<Integer> publisher = new UpdatePublisher<>();
+		Recorder<Integer> recorder = new Recorder<>();
+		publisher.subscribe(recorder);
+		recorder.subscription.request(0);
+		assertTrue(recorder.error instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void filtersAndMaps() {
+		UpdatePublisher<Integer> publisher = new UpdatePublisher<>();
+		Recorder<String> recorder = new Recorder<>();
+		publisher.filter((i) -> i % 2 == 0).map(String::valueOf).subscribe(recorder);
+		recorder.subscription.request(Long.MAX_VALUE);
+		for (int i = 0; i < 5; i++) {
+			publisher.accept(i);
+		}
+		publisher.complete();
+		assertEquals(Arrays.asList("0", "2", "4"), recorder.received);
+		assertTrue(recorder.completed);
+	}
+
+	@Test
+	public void signalsNothingBeforeSubscriptionReturned() throws InterruptedException {
+		UpdatePublisher<Integer> publisher = new UpdatePublisher<>();
+		List<String> signals = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch subscribing = new CountDownLatch(1);
+		CountDownLatch completing = new CountDownLatch(1);
+		Thread completer = new Thread(() -> {
+			try {
+				subscribing.await();
+			} catch (InterruptedException ex) {
+				return;
+			}
+			publisher.accept(1);
+			publisher.complete();
+			completing.countDown();
+		});
+		completer.start();
+		publisher.subscribe(new Subscriber<Integer>() {
+			@Override
+			public void onSubscribe(Subscription s) {
+				s.request(1);
+				subscribing.countDown();
+				try {
+					completing.await(1, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				signals.add("subscribe");
+			}
+
+			@Override
+			public void onNext(Integer t) {
+				signals.add("next");
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				signals.add("error");
+			}
+
+			@Override
+			public void onComplete() {
+				signals.add("complete");
+			}
+		});
+		completer.join();
+		assertEquals(Arrays.asList("subscribe", "next", "complete"), signals);
+	}
+}